@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2008 Matthew E. Kimmel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.zaxsoft.apps.server;
+
+import com.zaxsoft.headless.HeadlessSession;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A player's connection to a ZaxServer.  This passes lines between
+ * the socket and the player's session, and handles the server's
+ * commands; see ZaxServer for the protocol.
+ *
+ * @author Matt Kimmel
+ */
+class ZaxConnection implements Runnable {
+    private ZaxServer server; // The server we belong to
+    private Socket socket; // Connection to the player
+    private BufferedReader in; // Lines from the player
+    private Writer out; // Text to the player
+    private String id; // Id of the attached session, or null
+    private HeadlessSession session; // The attached session, or null
+    private String[] lastUpper = new String[0]; // Upper window as last sent
+
+    ZaxConnection(ZaxServer server,Socket socket)
+    {
+        this.server = server;
+        this.socket = socket;
+    }
+
+    public void run()
+    {
+        String line;
+        String[] msg = new String[1];
+
+        try {
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(),StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),StandardCharsets.UTF_8));
+            id = server.newSession(msg);
+            if (id == null) {
+                send("Can't start the story: " + msg[0] + "\n");
+                return;
+            }
+            session = server.getSession(id);
+            send("Session " + id + "\n");
+
+            // Alternate between sending whatever the story printed and
+            // reading the player's next line.
+            while (true) {
+                session.waitForPrompt(0);
+                sendScreen();
+                if (session.getState() == HeadlessSession.HALTED) {
+                    send("\nSession " + id + " has ended.\n");
+                    return;
+                }
+                line = in.readLine();
+                if (line == null) // Dropped; leave the session for later
+                    return;
+                if (!line.startsWith("/"))
+                    session.typeLine(line);
+                else if (!command(line))
+                    return;
+            }
+        }
+        catch (IOException ex) { // The player has gone
+        }
+        catch (InterruptedException ex) {
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException ex) {
+            }
+        }
+    }
+
+    // Carry out a server command.  Return false if the connection
+    // should be closed.
+    private boolean command(String line) throws IOException
+    {
+        HeadlessSession s;
+
+        if (line.equals("/detach")) {
+            send("Detached from session " + id + ".\n");
+            return false;
+        }
+        if (line.equals("/quit")) {
+            session.stop();
+            return true; // We'll see it halt
+        }
+        if (line.startsWith("/attach ")) {
+            s = server.getSession(line.substring(8).trim());
+            if (s == null) {
+                send("No such session.\n");
+                return true;
+            }
+            if (s != session)
+                send("Left session " + id + "; /attach " + id + " to return.\n");
+            id = line.substring(8).trim();
+            session = s;
+            lastUpper = new String[0];
+            send("Session " + id + "\n");
+            return true;
+        }
+        send("Commands are /detach, /attach id and /quit.\n");
+        return true;
+    }
+
+    // Send the upper window or status line, if it has changed, and
+    // then the story's output.
+    private void sendScreen() throws IOException
+    {
+        String[] upper;
+        String status;
+
+        status = session.getStatusLine();
+        upper = (status != null) ? new String[] { status } : session.getUpperWindow();
+        if (!Arrays.equals(upper,lastUpper)) {
+            for (int i = 0;i < upper.length;i++)
+                out.write("|" + upper[i] + "\n");
+            lastUpper = upper;
+        }
+        send(session.takeOutput());
+    }
+
+    // Send some text to the player.
+    private void send(String s) throws IOException
+    {
+        out.write(s);
+        out.flush();
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (c) 2008 Matthew E. Kimmel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.zaxsoft.apps.server;
+
+import com.zaxsoft.headless.HeadlessSession;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ZaxServer - plays a story-file with any number of players at once,
+ * over a line-by-line protocol on a local socket.  Each connection gets
+ * a session of its own (see HeadlessSession); text typed by the player
+ * is input to the story, and whatever the story prints is sent back each
+ * time it waits for input.  When the upper window or status line has
+ * changed, its lines are sent first, each starting with "|".  Lines
+ * starting with "/" are commands to the server:
+ *
+ *     /detach       Disconnect, leaving the session to be attached later
+ *     /attach id    Leave the current session and attach to session id
+ *     /quit         End the session and disconnect
+ *
+ * Dropping the connection detaches the session, too.  A session left
+ * waiting for input for long enough hibernates: it is written to disk
+ * and takes up next to no memory until the player types something.
+ *
+ * Every session, and every connection, runs on a thread of its own.
+ * These are virtual threads when the JVM has them (Java 21 on), so a
+ * player waiting at a prompt costs no platform thread; otherwise they
+ * are platform threads with small stacks.
+ *
+ * @author Matt Kimmel
+ */
+class ZaxServer {
+    static final int STACK_SIZE = 512 * 1024; // Stack size of platform threads
+
+    private static Method ofVirtual; // Thread.ofVirtual(), if there is one
+    private static Method builderName; // Thread.Builder.name(String)
+    private static Method builderUnstarted; // Thread.Builder.unstarted(Runnable)
+
+    private String storyFile; // The story-file everyone plays
+    private File saveRoot; // Each session saves games in a directory under this
+    private long idleMillis; // Idle sessions hibernate after this long; 0 means never
+    private ConcurrentHashMap<String,HeadlessSession> sessions = new ConcurrentHashMap<String,HeadlessSession>(); // Live sessions, by id
+    private SecureRandom random = new SecureRandom(); // For session ids
+
+    // Find the virtual thread API, if this JVM has it.
+    static {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builder.getMethod("name",String.class);
+            builderUnstarted = builder.getMethod("unstarted",Runnable.class);
+        }
+        catch (Exception ex) {
+            ofVirtual = null;
+        }
+    }
+
+    // Main routine.  Arguments are the story-file, the port to listen
+    // on (default 4000), the directory for saved games (default
+    // "saves"), and the number of seconds a session may wait for input
+    // before it hibernates (default 300; 0 turns hibernation off).
+    // Hibernated sessions are kept in the saved game directory.
+    public static void main(String args[]) throws IOException
+    {
+        ZaxServer server;
+        int port;
+        long idle;
+
+        if ((args.length < 1) || (args.length > 4)) {
+            System.err.println("Usage: ZaxServer storyfile [port [savedir [idleseconds]]]");
+            System.exit(1);
+        }
+        port = (args.length > 1) ? Integer.parseInt(args[1]) : 4000;
+        idle = (args.length > 3) ? Long.parseLong(args[3]) : 300;
+        server = new ZaxServer(args[0],new File((args.length > 2) ? args[2] : "saves"),idle * 1000);
+        server.listen(port);
+    }
+
+    ZaxServer(String storyFile,File saveRoot,long idleMillis)
+    {
+        this.storyFile = storyFile;
+        this.saveRoot = saveRoot;
+        this.idleMillis = idleMillis;
+    }
+
+    // Accept connections on the given port, on the loopback address
+    // only, for ever.
+    void listen(int port) throws IOException
+    {
+        ServerSocket ss = new ServerSocket(port,50,InetAddress.getLoopbackAddress());
+        Socket s;
+
+        System.err.println("ZaxServer: playing " + storyFile + " on port " + port +
+                           ((ofVirtual != null) ? " (virtual threads)" : ""));
+        while (true) {
+            s = ss.accept();
+            newThread(new ZaxConnection(this,s),"ZaxConnection").start();
+        }
+    }
+
+    // Return a new thread to run r: a virtual thread if possible,
+    // otherwise a platform thread with a small stack.
+    static Thread newThread(Runnable r,String name)
+    {
+        if (ofVirtual != null) {
+            try {
+                return (Thread)builderUnstarted.invoke(builderName.invoke(ofVirtual.invoke(null),name),r);
+            }
+            catch (Exception ex) { // Present but not enabled (a preview in Java 19 and 20)
+                ofVirtual = null;
+            }
+        }
+        return new Thread(null,r,name,STACK_SIZE);
+    }
+
+    // Start a new session, and return its id; or return null, with
+    // the reason in msg[0], if the story can't be loaded.
+    String newSession(String[] msg)
+    {
+        HeadlessSession session = new HeadlessSession(25,80);
+        final String id;
+        File dir;
+
+        if (!session.load(storyFile)) {
+            msg[0] = session.getHaltMessage();
+            return null;
+        }
+        id = register(session);
+        dir = new File(saveRoot,id);
+        dir.mkdirs();
+        session.setSaveDirectory(dir);
+        if (idleMillis > 0)
+            session.setHibernation(saveRoot,idleMillis);
+
+        // The session runs on a new thread each time it wakes from
+        // hibernation.  Once it has halted, it can be forgotten.
+        session.setThreadFactory(r -> newThread(r,"ZMachine " + id));
+        session.setHaltListener(() -> forget(id,dir));
+        session.start();
+        return id;
+    }
+
+    // Forget a session that has halted, and delete its saved games,
+    // which no one can get at any more.
+    private void forget(String id,File dir)
+    {
+        File[] files;
+
+        sessions.remove(id);
+        files = dir.listFiles();
+        if (files != null)
+            for (int i=0;i<files.length;i++)
+                files[i].delete();
+        dir.delete();
+    }
+
+    // Add a session to the table under a new, hard to guess, id, and
+    // return the id.
+    private String register(HeadlessSession session)
+    {
+        String id;
+
+        do {
+            id = Long.toString(random.nextLong() & Long.MAX_VALUE,36);
+        } while (sessions.putIfAbsent(id,session) != null);
+        return id;
+    }
+
+    // Return the session with the given id, or null if there is none.
+    HeadlessSession getSession(String id)
+    {
+        return sessions.get(id);
+    }
+}
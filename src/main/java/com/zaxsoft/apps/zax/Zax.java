@@ -48,6 +48,7 @@ class Zax extends Frame implements ZUserInterface {
     int moreLines = 0; // Number of lines before next MORE
     Hashtable inputCharacters; // Used to translate between Event input characters and Z-Machine input characters
     Vector terminatingCharacters; // List of terminating characters for READ operations
+    Vector<String> saveFailures = new Vector<String>(); // Reports from saveFailed() not yet printed
 	Thread cpuThread = null; // Thread of ZMachine CPU
     
     // Main routine.  Just instantiates the class.
@@ -441,6 +442,7 @@ class Zax extends Frame implements ZUserInterface {
         int rc;
         Integer zc;
         
+        showSaveFailures();
         moreLines = 0;
         screen.requestFocus();
         if (time == 0)
@@ -464,6 +466,7 @@ class Zax extends Frame implements ZUserInterface {
         int key;
         Integer zchar;
         
+        showSaveFailures();
         moreLines = 0;
 		screen.requestFocus();
 		if (time == 0)
@@ -483,8 +486,9 @@ class Zax extends Frame implements ZUserInterface {
 
     // Display a string -- this method does a number of things, including scrolling only
 	// as necessary, word-wrapping, and "more".
-    public void showString(String s)
+    public void showString(CharSequence text)
     {
+		String s = text.toString();
 		Point cursor;
 		String outstr, curtoken;
 		StringTokenizer intokens;
@@ -716,6 +720,21 @@ class Zax extends Frame implements ZUserInterface {
 		return d;
 	}
 
+	// saveFailed--report a background save that didn't work out.  This
+	// is called on the save executor's thread, so the report is left
+	// for the CPU thread to print the next time it reads input.
+	public void saveFailed(String filename,String message)
+	{
+		saveFailures.addElement("Could not save " + filename + ": " + message + "\n");
+	}
+
+	// Print the reports left by saveFailed().
+	private void showSaveFailures()
+	{
+		while (!saveFailures.isEmpty())
+			screen.printString(saveFailures.remove(0));
+	}
+
     // quit--end the program
     public void quit()
     {
@@ -0,0 +1,1032 @@
+/**
+ * Copyright (c) 2008 Matthew E. Kimmel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.zaxsoft.headless;
+
+import com.zaxsoft.zmachine.ZCPU;
+import com.zaxsoft.zmachine.ZUserInterface;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Vector;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/** A HeadlessSession runs a story-file with no screen or keyboard, for
+    use on a server.  Input is queued with typeLine() or typeKeys(), and
+    text printed to the lower window collects in a buffer until it is
+    collected with takeOutput().  The upper window (or, in V1-3, the
+    status line) is kept as a grid of characters, which can be read at
+    any time.  Nothing here needs a display; java.awt.Dimension and
+    java.awt.Point are only used as the plain value classes that
+    ZUserInterface asks for.
+    
+    The session runs the Z-Machine on whatever thread calls run() (or on
+    a new thread, with start()), and that thread waits whenever the
+    story asks for input that hasn't been typed yet.  Other threads may
+    type input, collect output and look at the windows at any time.
+    The waiting is done with java.util.concurrent locks rather than
+    synchronized, so a virtual thread running a session is unmounted
+    from its carrier while it waits.
+    A session holds little besides the Z-Machine itself, so one JVM can
+    run a great many of them.
+    
+    Lower window text is not word-wrapped or paged; that is left to
+    whatever displays it.  Colors and text styles are ignored.
+    
+    @author Matt Kimmel
+*/
+
+public class HeadlessSession implements ZUserInterface, Runnable
+{
+    // Public constants
+    // States
+    public static final int LOADED = 0; // Story loaded, not started
+    public static final int RUNNING = 1; // Running
+    public static final int WAITING = 2; // Waiting for input
+    public static final int HALTED = 3; // Quit, failed, or stopped
+    public static final int HIBERNATING = 4; // Put away on disk until there is input
+    
+    // Private variables
+    private ZCPU cpu; // The Z-Machine
+    private int version; // Version of the story-file
+    private int state; // Current state
+    private boolean stopping; // Set by stop()
+    private String haltMessage; // Fatal error that halted the machine, or null
+    private int rows, cols; // Size of the "screen"
+    private StringBuilder output; // Lower window text not yet collected
+    private int outputCol; // Column of the lower window cursor, 0-based
+    private StringBuilder input; // Characters typed but not read yet
+    private Vector<Integer> terminators; // Characters that terminate a line of input
+    private TextGrid upper; // The upper window
+    private TextGrid statusBar; // The status line, in V1-3
+    private int curWindow; // Current window, 0 (lower) or 1 (upper)
+    private File saveDirectory; // Where saved games go, or null if they can't be saved
+    private String storyFile; // The story-file being played
+    private Consumer<ZCPU> setup; // Sets up each new ZCPU, or null
+    private ThreadFactory threadFactory; // Makes threads for start(), or null
+    private Runnable haltListener; // Told when a started session halts, or null
+    private File hibernateDir; // Where the machine is put away when idle, or null
+    private long idleMillis; // How long to wait for input before hibernating
+    private File hibernated; // File the machine has been put away in, or null
+    private boolean resuming; // Set while a hibernated machine is brought back
+    private ReentrantLock lock = new ReentrantLock(); // Guards everything above
+    private Condition changed = lock.newCondition(); // Signalled on new input or a change of state
+    
+    // Inner classes
+    
+    // Halt unwinds the Z-Machine's thread when the machine quits or
+    // fails, since ZUserInterface.quit() and fatal() must not return.
+    private static class Halt extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+        
+        Halt()
+        {
+            super(null,null,false,false);
+        }
+    }
+    
+    // Hibernate unwinds the Z-Machine's thread once the machine has been
+    // put away on disk.
+    private static class Hibernate extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+        
+        Hibernate()
+        {
+            super(null,null,false,false);
+        }
+    }
+    
+    /** Constructs a session with a screen of the given size.  No story
+        is loaded yet.
+        
+        @param rows Height of the screen in lines
+        @param cols Width of the screen in characters
+    */
+    public HeadlessSession(int rows,int cols)
+    {
+        this.rows = rows;
+        this.cols = cols;
+        output = new StringBuilder(1024);
+        input = new StringBuilder(80);
+        terminators = new Vector<Integer>();
+        upper = new TextGrid(cols,rows);
+        statusBar = new TextGrid(cols,1);
+        state = HALTED;
+    }
+    
+    /** Loads a story-file, ready to be run.
+    
+        @param storyFile Path of the story-file
+        @return true if the story was loaded; otherwise, getHaltMessage() says why not
+    */
+    public boolean load(String storyFile)
+    {
+        this.storyFile = storyFile;
+        cpu = newCPU();
+        try {
+            cpu.initialize(storyFile);
+        }
+        catch (Halt h) {
+            setState(HALTED);
+            return false;
+        }
+        setState(LOADED);
+        return true;
+    }
+    
+    /** Returns the Z-Machine, so that it can be configured before it is run.
+        A hibernating session has no Z-Machine, and a woken one has a new
+        one, so configuration that must last should be done with setSetup().
+    
+        @return The ZCPU for this session, or null if it is hibernating
+    */
+    public ZCPU getCPU()
+    {
+        return cpu;
+    }
+    
+    /** Sets a hook that is passed each new ZCPU the session makes, before
+        the story is loaded into it, to configure it.  Call this before
+        load().
+        
+        @param setup Hook to call, taking a ZCPU
+    */
+    public void setSetup(Consumer<ZCPU> setup)
+    {
+        this.setup = setup;
+    }
+    
+    /** Sets the factory that start() gets threads from.  By default,
+        start() makes an ordinary thread.
+        
+        @param factory Thread factory to use
+    */
+    public void setThreadFactory(ThreadFactory factory)
+    {
+        threadFactory = factory;
+    }
+    
+    /** Sets a hook to be called once a session that has been started
+        halts, whether it quits, fails or is stopped.  It is called on
+        the thread that halted the session, without the session locked.
+        
+        @param listener Hook to call, or null for none
+    */
+    public void setHaltListener(Runnable listener)
+    {
+        haltListener = listener;
+    }
+    
+    /** Turns on hibernation.  When the story has waited for input for the
+        given time, the Z-Machine is saved in a file in the given directory,
+        and its memory and thread are given up, leaving only the windows
+        and any output not yet collected.  The next input typed brings it
+        back on a thread from start().  SAVE_UNDO states don't survive
+        hibernation, and a story part way through a timed read or an
+        interrupt routine won't hibernate until it is out of it, nor
+        will one waiting in a read whose operands came off the stack.
+        
+        @param dir Directory for hibernated sessions
+        @param millis How long to wait for input before hibernating
+    */
+    public void setHibernation(File dir,long millis)
+    {
+        lock.lock();
+        try {
+            hibernateDir = dir;
+            idleMillis = millis;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    /** Sets the directory saved games are written to and read from.  Until
+        this is called, games can't be saved.
+        
+        @param dir Directory for saved games
+    */
+    public void setSaveDirectory(File dir)
+    {
+        lock.lock();
+        try {
+            saveDirectory = dir;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    /** Runs the story on the calling thread, returning when it quits, fails
+        or is stopped.
+    */
+    public void run()
+    {
+        boolean hibernating = false;
+        
+        setState(RUNNING);
+        try {
+            if (hibernated != null)
+                wake();
+            cpu.run();
+        }
+        catch (Halt h) {
+        }
+        catch (Hibernate h) { // hibernate() has set the state
+            hibernating = true;
+        }
+        finally {
+            if (!hibernating) {
+                setState(HALTED);
+                if (haltListener != null)
+                    haltListener.run();
+            }
+        }
+    }
+    
+    /** Runs the story on a new thread.
+    
+        @return The new thread
+    */
+    public Thread start()
+    {
+        Thread t;
+        
+        if (threadFactory != null)
+            t = threadFactory.newThread(this);
+        else
+            t = new Thread(this,"ZMachine");
+        t.start();
+        return t;
+    }
+    
+    /** Stops the story the next time it waits for input, or straight away
+        if it is hibernating.
+    */
+    public void stop()
+    {
+        boolean halted = false;
+        
+        lock.lock();
+        try {
+            stopping = true;
+            if (state == HIBERNATING) {
+                hibernated.delete();
+                hibernated = null;
+                state = HALTED;
+                halted = true;
+            }
+            else if (state == WAITING) // It will halt once it notices
+                state = RUNNING;
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        if (halted && (haltListener != null))
+            haltListener.run();
+    }
+    
+    /** Types a line of input, followed by Enter.
+    
+        @param line The line to type
+    */
+    public void typeLine(String line)
+    {
+        lock.lock();
+        try {
+            input.append(line).append('\n');
+            typed();
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    /** Types some keys.  A newline is Enter; other characters are passed
+        to the story as they are, so function keys and the like may be
+        typed as Z-Machine character codes.
+    
+        @param keys The keys to type
+    */
+    public void typeKeys(CharSequence keys)
+    {
+        lock.lock();
+        try {
+            input.append(keys);
+            typed();
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    /** Waits until the story is waiting for input that hasn't been typed
+        (or hibernating), or has halted.
+    
+        @param millis Longest time to wait, in milliseconds, or 0 to wait indefinitely
+        @return true if the story is waiting or halted, false if the wait timed out
+    */
+    public boolean waitForPrompt(long millis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + millis;
+        long left;
+
+        lock.lock();
+        try {
+            while ((state != WAITING) && (state != HALTED) && (state != HIBERNATING)) {
+                if (millis == 0)
+                    changed.await();
+                else {
+                    left = deadline - System.currentTimeMillis();
+                    if (left <= 0)
+                        return false;
+                    changed.await(left,TimeUnit.MILLISECONDS);
+                }
+            }
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    /** Returns the text printed to the lower window since the last call,
+        including any input that was echoed.
+    
+        @return Text printed since the last call
+    */
+    public String takeOutput()
+    {
+        String s;
+
+        lock.lock();
+        try {
+            s = output.toString();
+            output.setLength(0);
+            return s;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    /** Returns the contents of the upper window, one string per line.
+    
+        @return Lines of the upper window
+    */
+    public String[] getUpperWindow()
+    {
+        String[] lines;
+
+        lock.lock();
+        try {
+            lines = new String[upper.getHeight()];
+            for (int i = 0;i < lines.length;i++)
+                lines[i] = upper.getLine(i);
+            return lines;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    /** Returns the status line of a V1-3 story.
+    
+        @return The status line, or null if there is none
+    */
+    public String getStatusLine()
+    {
+        lock.lock();
+        try {
+            if (statusBar.getHeight() == 0)
+                return null;
+            return statusBar.getLine(0);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    /** Returns the current state: LOADED, RUNNING, WAITING, HIBERNATING
+        or HALTED.
+    
+        @return The current state
+    */
+    public int getState()
+    {
+        lock.lock();
+        try {
+            return state;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    /** Returns the fatal error that halted the story.
+    
+        @return The error message, or null if the story hasn't failed
+    */
+    public String getHaltMessage()
+    {
+        lock.lock();
+        try {
+            return haltMessage;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    // Private methods
+    
+    private void setState(int newState)
+    {
+        lock.lock();
+        try {
+            state = newState;
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    // Note that input has been typed.  A waiting story is no longer
+    // waiting, until it has seen the input anyway, and a hibernating
+    // one is started up again.  The caller holds the lock.
+    private void typed()
+    {
+        if (state == WAITING)
+            state = RUNNING;
+        else if (state == HIBERNATING) {
+            state = RUNNING;
+            start();
+        }
+    }
+    
+    // Return the index in the input of the character that ends the
+    // first line, or -1 if no line has been finished.
+    private int lineEnd()
+    {
+        char c;
+        
+        for (int i = 0;i < input.length();i++) {
+            c = input.charAt(i);
+            if ((c == '\n') || terminators.contains(Integer.valueOf(c)))
+                return i;
+        }
+        return -1;
+    }
+    
+    // Wait until a line (or, if line is false, a key) has been typed.
+    // If time is nonzero, give up after time tenths of a second and
+    // return false.  Otherwise, if nothing is typed for the idle
+    // period, hibernate if mayHibernate is set and it's possible.  The
+    // caller holds the lock.
+    private boolean awaitInput(int time,boolean line,boolean mayHibernate)
+    {
+        long now = System.currentTimeMillis();
+        long deadline = (time == 0) ? 0 : (now + (time * 100L));
+        long idleDeadline = ((time == 0) && mayHibernate && (hibernateDir != null)) ? (now + idleMillis) : 0;
+
+        try {
+            while (line ? (lineEnd() < 0) : (input.length() == 0)) {
+                setState(WAITING);
+                if (waitForInput((deadline != 0) ? deadline : idleDeadline))
+                    continue;
+                if (deadline != 0)
+                    return false;
+                hibernate(); // Only returns if it can't be done just now
+                idleDeadline = 0;
+            }
+        }
+        finally {
+            if (state == WAITING)
+                state = RUNNING;
+        }
+        return true;
+    }
+
+    // Move the first line of input, which awaitInput() has waited for,
+    // to the end of buffer, echoing it, and return its terminating
+    // character.  The caller holds the lock.
+    private int takeLine(StringBuffer buffer)
+    {
+        int n = lineEnd();
+        char c = input.charAt(n);
+
+        buffer.append(input,0,n);
+        input.delete(0,n + 1);
+        print(buffer.subSequence(buffer.length() - n,buffer.length()));
+        print("\n");
+        return (c == '\n') ? 13 : c;
+    }
+
+    // Put the Z-Machine away in a file in the hibernation directory, and
+    // unwind its thread; the next input typed starts it up again.  The
+    // saved state is a Quetzal saved game, whose dynamic memory is
+    // compressed against the story-file, so it is usually small.  If the
+    // machine can't be put away just now, return.  The caller holds the
+    // lock, and is the machine's thread.
+    private void hibernate()
+    {
+        byte[] data;
+        File f;
+
+        data = cpu.suspend();
+        if (data == null)
+            return;
+        try {
+            f = File.createTempFile("zax",".qzl",hibernateDir);
+            Files.write(f.toPath(),data);
+        }
+        catch (IOException ex) {
+            return;
+        }
+        hibernated = f;
+        cpu = null;
+        setState(HIBERNATING);
+        throw new Hibernate();
+    }
+
+    // Bring the Z-Machine back from the file hibernate() put it in.
+    // This runs on the machine's new thread, before it is started.
+    private void wake()
+    {
+        byte[] data = null;
+        ZCPU z;
+
+        try {
+            data = Files.readAllBytes(hibernated.toPath());
+        }
+        catch (IOException ex) {
+            fatal("Can't read hibernated session: " + ex.getMessage());
+        }
+        z = newCPU();
+        resuming = true;
+        try {
+            z.initialize(storyFile);
+        }
+        finally {
+            resuming = false;
+        }
+        if (!z.resume(data))
+            fatal("Hibernated session doesn't belong to " + storyFile);
+        hibernated.delete();
+        hibernated = null;
+        cpu = z;
+    }
+
+    // Make a new Z-Machine for this session, set up by the setup hook.
+    private ZCPU newCPU()
+    {
+        ZCPU z = new ZCPU(this);
+
+        if (setup != null)
+            setup.accept(z);
+        return z;
+    }
+
+    // Wait for more input, until the given deadline if it is nonzero.
+    // Return false if the deadline has passed.  Halt if the session is
+    // being stopped.  The caller holds the lock.
+    private boolean waitForInput(long deadline)
+    {
+        long left;
+        
+        if (stopping)
+            throw new Halt();
+        try {
+            if (deadline == 0)
+                changed.await();
+            else {
+                left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    return false;
+                changed.await(left,TimeUnit.MILLISECONDS);
+            }
+        }
+        catch (InterruptedException ex) {
+            throw new Halt();
+        }
+        if (stopping)
+            throw new Halt();
+        return true;
+    }
+    
+    // Print s in the current window.
+    private void print(CharSequence s)
+    {
+        char c;
+        int n;
+        
+        if (curWindow == 1) {
+            upper.print(s);
+            return;
+        }
+        for (int i = 0;i < s.length();i++) {
+            c = s.charAt(i);
+            if (c == '\b') { // Rub out the last character, if it's on this line
+                n = output.length();
+                if ((outputCol > 0) && (n > 0)) {
+                    output.setLength(n - 1);
+                    outputCol--;
+                }
+                continue;
+            }
+            output.append(c);
+            if (c == '\n')
+                outputCol = 0;
+            else
+                outputCol++;
+        }
+    }
+    
+    // ZUserInterface methods
+    /////////////////////////////////////////////////////////
+    
+    // fatal - remember the message and halt
+    public void fatal(String message)
+    {
+        lock.lock();
+        try {
+            haltMessage = message;
+        }
+        finally {
+            lock.unlock();
+        }
+        throw new Halt();
+    }
+    
+    // Set up the windows for a new game.  Any output not collected yet
+    // is kept.
+    public void initialize(int version)
+    {
+        lock.lock();
+        try {
+            if (resuming) // Just woken from hibernation; the windows are as they were
+                return;
+            this.version = version;
+            upper.setHeight(0);
+            curWindow = 0;
+            if (version < 4) {
+                statusBar.setHeight(1);
+                statusBar.clear();
+            }
+            else
+                statusBar.setHeight(0);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    @SuppressWarnings("rawtypes") // As declared by ZUserInterface
+    public void setTerminatingCharacters(Vector characters)
+    {
+        lock.lock();
+        try {
+            terminators = new Vector<Integer>(characters.size());
+            for (Object c : characters)
+                terminators.addElement((Integer)c);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    public boolean hasStatusLine()
+    {
+        return true;
+    }
+    
+    public boolean hasUpperWindow()
+    {
+        return true;
+    }
+    
+    public boolean defaultFontProportional()
+    {
+        return false;
+    }
+    
+    public boolean hasColors()
+    {
+        return false;
+    }
+    
+    public boolean hasBoldface()
+    {
+        return false;
+    }
+    
+    public boolean hasItalic()
+    {
+        return false;
+    }
+    
+    public boolean hasFixedWidth()
+    {
+        return true;
+    }
+    
+    public boolean hasTimedInput()
+    {
+        return true;
+    }
+    
+    public Dimension getScreenCharacters()
+    {
+        return new Dimension(cols,rows);
+    }
+    
+    // Each character is one unit square.
+    public Dimension getScreenUnits()
+    {
+        return new Dimension(cols,rows);
+    }
+    
+    public Dimension getFontSize()
+    {
+        return new Dimension(1,1);
+    }
+    
+    public Dimension getWindowSize(int window)
+    {
+        lock.lock();
+        try {
+            if (window == 1)
+                return new Dimension(cols,upper.getHeight());
+            return new Dimension(cols,rows - upper.getHeight());
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    public int getDefaultForeground()
+    {
+        return 2;
+    }
+    
+    public int getDefaultBackground()
+    {
+        return 9;
+    }
+    
+    // Return the cursor position, 1-based.  The lower window cursor is
+    // always on its bottom line.
+    public Point getCursorPosition()
+    {
+        lock.lock();
+        try {
+            if (curWindow == 1)
+                return new Point(upper.getX() + 1,upper.getY() + 1);
+            return new Point(outputCol + 1,rows - upper.getHeight());
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    // Lay the status line out the way Zax does, with the location on
+    // the left and the score and turns or the time on the right.
+    public void showStatusBar(String s, int a, int b, boolean flag)
+    {
+        String left, right;
+
+        lock.lock();
+        try {
+            left = " " + s + " ";
+            if (flag)
+                right = " Time: " + a + ":" + ((b < 10) ? "0" : "") + b + " ";
+            else
+                right = " Score: " + a + "  Turns: " + b + " ";
+            statusBar.clear();
+            statusBar.print(left);
+            statusBar.moveTo(Math.max(left.length(),cols - right.length()),0);
+            statusBar.print(right);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    public void splitScreen(int lines)
+    {
+        lock.lock();
+        try {
+            upper.setHeight(lines);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    // Set the current window; in V1-3, selecting the upper window
+    // clears it, and in V4+ it homes the cursor.
+    public void setCurrentWindow(int window)
+    {
+        lock.lock();
+        try {
+            curWindow = window;
+            if (window == 1) {
+                if (version < 4)
+                    upper.clear();
+                upper.moveTo(0,0);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    // Only the upper window's cursor can be moved.
+    public void setCursorPosition(int x, int y)
+    {
+        lock.lock();
+        try {
+            if (curWindow == 1)
+                upper.moveTo(x - 1,y - 1);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    public void setColor(int foreground, int background)
+    {
+    }
+    
+    public void setTextStyle(int style)
+    {
+    }
+    
+    public void setFont(int font)
+    {
+    }
+    
+    // Read a line of input, waiting for it to be typed if necessary.
+    // If time is nonzero, give up after time tenths of a second and
+    // return -1.  The line is echoed to the lower window.
+    public int readLine(StringBuffer buffer, int time)
+    {
+        lock.lock();
+        try {
+            if (!awaitInput(time,true,true))
+                return -1;
+            return takeLine(buffer);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    // Read a key, waiting for it to be typed if necessary.  If time is
+    // nonzero, give up after time tenths of a second and return -1.
+    public int readChar(int time)
+    {
+        char c;
+
+        lock.lock();
+        try {
+            if (!awaitInput(time,false,true))
+                return -1;
+            c = input.charAt(0);
+            input.deleteCharAt(0);
+            return (c == '\n') ? 13 : c;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    public void showString(CharSequence s)
+    {
+        lock.lock();
+        try {
+            print(s);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    // The lower window scrolls by itself, and the upper one never does.
+    public void scrollWindow(int lines)
+    {
+    }
+    
+    // Erase the rest of the line in the upper window.
+    public void eraseLine(int s)
+    {
+        lock.lock();
+        try {
+            if (curWindow == 1)
+                upper.eraseToEnd();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    // Erase a window.  Lower window text that has been printed can't be
+    // taken back, so erasing it just starts a new line.
+    public void eraseWindow(int window)
+    {
+        lock.lock();
+        try {
+            if (window == 1)
+                upper.clear();
+            else if (outputCol > 0)
+                print("\n");
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    // Ask the player for the name of a file in the save directory,
+    // offering the suggested name (or the story's own name) as the
+    // default.  Anything that looks like a path is refused.
+    public String getFilename(String title, String suggested, boolean saveFlag)
+    {
+        StringBuffer sb = new StringBuffer();
+        String name;
+
+        lock.lock();
+        try {
+            if (saveDirectory == null)
+                return null;
+            if (suggested == null)
+                suggested = "story.sav";
+            print(title + " - file name [" + suggested + "]: ");
+            awaitInput(0,true,false); // Not while SAVE or RESTORE is under way
+            if (takeLine(sb) != 13)
+                return null;
+            name = sb.toString().trim();
+            if (name.length() == 0)
+                name = suggested;
+            if ((name.indexOf('/') >= 0) || (name.indexOf('\\') >= 0) || name.startsWith("."))
+                return null;
+            return new File(saveDirectory,name).getPath();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    // Report a background save that didn't work out.
+    public void saveFailed(String filename, String message)
+    {
+        lock.lock();
+        try {
+            print("\n[Could not save " + new File(filename).getName() + ": " + message + "]\n");
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    public void quit()
+    {
+        throw new Halt();
+    }
+    
+    // Nothing to do here; initialize() is called again once the
+    // story has been reloaded.
+    public void restart()
+    {
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2008 Matthew E. Kimmel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.zaxsoft.headless;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size grid of characters with a cursor, standing in for the
+ * upper window (or the status line) of a screen that isn't there.
+ * Text written past the right-hand edge is cut off, and text written
+ * below the bottom line is thrown away; the upper window never scrolls.
+ *
+ * @author Matt Kimmel
+ */
+class TextGrid {
+    private char[][] cells; // The grid, by line and then column
+    private int width; // Width of the grid in characters
+    private int height; // Number of lines currently in use
+    private int curX, curY; // Cursor position, 0-based
+
+    // Construct a grid width characters wide, with room for up
+    // to maxLines lines.  It starts out with no lines in use.
+    TextGrid(int width,int maxLines)
+    {
+        this.width = width;
+        cells = new char[maxLines][];
+        height = 0;
+    }
+
+    // Set the number of lines in use.  Lines that come into use are
+    // blank; the cursor is homed if it is no longer in the grid.
+    void setHeight(int lines)
+    {
+        lines = Math.max(0,Math.min(lines,cells.length));
+        for (int y = height;y < lines;y++)
+            clearLine(y);
+        height = lines;
+        if (curY >= height)
+            curX = curY = 0;
+    }
+
+    int getHeight()
+    {
+        return height;
+    }
+
+    int getWidth()
+    {
+        return width;
+    }
+
+    // Blank the grid and home the cursor.
+    void clear()
+    {
+        for (int y = 0;y < height;y++)
+            clearLine(y);
+        curX = curY = 0;
+    }
+
+    // Blank line y.
+    private void clearLine(int y)
+    {
+        if (cells[y] == null)
+            cells[y] = new char[width];
+        Arrays.fill(cells[y],' ');
+    }
+
+    // Blank the rest of the current line, from the cursor on.
+    void eraseToEnd()
+    {
+        if (curY < height)
+            Arrays.fill(cells[curY],Math.min(curX,width),width,' ');
+    }
+
+    // Move the cursor; x and y are 0-based.
+    void moveTo(int x,int y)
+    {
+        curX = Math.max(0,x);
+        curY = Math.max(0,y);
+    }
+
+    int getX()
+    {
+        return curX;
+    }
+
+    int getY()
+    {
+        return curY;
+    }
+
+    // Write s at the cursor, moving the cursor along.
+    void print(CharSequence s)
+    {
+        char c;
+
+        for (int i = 0;i < s.length();i++) {
+            c = s.charAt(i);
+            if (c == '\n') {
+                curX = 0;
+                curY++;
+                continue;
+            }
+            if ((curY < height) && (curX < width))
+                cells[curY][curX] = c;
+            curX++;
+        }
+    }
+
+    // Return the contents of line y.
+    String getLine(int y)
+    {
+        return new String(cells[y]);
+    }
+}
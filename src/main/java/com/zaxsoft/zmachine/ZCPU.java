@@ -23,9 +23,17 @@ package com.zaxsoft.zmachine;
 
 import java.awt.*;
 import java.io.*;
-import java.util.Stack;
-import java.util.StringTokenizer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.IntConsumer;
 
 /**
  * The ZCPU class implements the Central Processing Unit
@@ -40,11 +48,11 @@ import java.util.Vector;
 public class ZCPU extends Object implements Runnable {
     // Private constants
     // Opcode types
-    private final int OPTYPE_0OP = 0; // 0OP opcode type
-    private final int OPTYPE_1OP = 1; // 1OP opcode type
-    private final int OPTYPE_2OP = 2; // 2OP opcode type
-    private final int OPTYPE_VAR = 3; // Variable opcode type
-    private final int OPTYPE_EXT = 4; // Extended opcode type
+    static final int OPTYPE_0OP = 0; // 0OP opcode type
+    static final int OPTYPE_1OP = 1; // 1OP opcode type
+    static final int OPTYPE_2OP = 2; // 2OP opcode type
+    static final int OPTYPE_VAR = 3; // Variable opcode type
+    static final int OPTYPE_EXT = 4; // Extended opcode type
 
     // Argument types
     private final int ARGTYPE_BYTE = 0; // Byte
@@ -53,7 +61,10 @@ public class ZCPU extends Object implements Runnable {
     // Other objects associated with this ZMachine
     private ZMemory memory; // This ZMachine's memory
     private ZObjectTable objTable; // This ZMachine's object table
-    private Stack callStack; // This ZMachine's call stack
+    private ZCallFrame[] frames = new ZCallFrame[64]; // This ZMachine's call stack; records are reused
+    private int frameDepth; // Index in frames of the current call frame
+    private int[] valueStack = new int[1024]; // Routine stacks of all frames, one above another
+    private int sp; // Next free entry in valueStack
     private ZRandom rndgen; // This ZMachine's random number generator
     private ZIOCard ioCard; // This ZMachine's I/O card
     private ZUserInterface zui; // User interface supplied to constructor
@@ -64,6 +75,7 @@ public class ZCPU extends Object implements Runnable {
     private int programScale; // Scaling factor for this program
     private ZCallFrame curCallFrame; // Current call frame
     private int curInstruction; // Instruction currently being executed
+    private int curInstructionAddr; // Address of the instruction being executed
     private int curOpcode; // Opcode (untyped instruction) being executed
     private int curOpcodeType; // Type of current opcode;
     private int op1, op2, op1type, op2type; // Current operands for 1OPs and 2OPs and their types.
@@ -74,14 +86,33 @@ public class ZCPU extends Object implements Runnable {
     private boolean curBranchReversed; // Current branch logic reversed?
     private int curResult; // Current result argument
     private String curString; // Current string argument
+    private int curStringAddr; // Address of current string argument
+    private ZInstruction[][] instructionCache; // Decoded instructions, in pages allocated as they are needed
+    private Opcode[] dispatchTable; // Opcode handlers; see buildDispatchTable()
+    private ZRuntime runtime; // Runs compiled routines, or null if compilation is off
+    private int compileThreshold = 0; // Calls before a routine is compiled; 0 means never
+    private boolean keepPredecessors = false; // Index objects' previous siblings
     private boolean decode_ret_flag = false; // Set to true when decodeLoop must return
     private int ret_value; // Value from last RET instruction, if returning from interrupt
     private int abbrevTable; // Location in memory of abbreviation table.
+    private char[][] abbreviations; // Expanded abbreviations, or null if not available
     private int globalVars; // Location in memory of global variables
 	private int dynamicMemorySize; // Size of dynamic memory
     private boolean restartFlag; // true if this is a restart
+    private boolean resumed; // true if resume() has set up the call stack for run()
 	private int mainDictionary; // Address of main dictionary
-	private byte[] undoState; // Current undo state
+	private int[] dictionaryAddrs; // Addresses of the dictionaries in static memory indexed so far
+	private ZDictionary[] dictionaries; // Their indexes
+	private int numDictionaries; // How many there are
+	private ZStringCache stringCache; // Strings already decoded
+	private int[] textDepends = new int[64]; // Dynamic memory read by decodeText(); see decodeZString()
+	private int numTextDepends; // Number of address/word pairs in textDepends
+	private ZUndoRing undoRing; // States saved by SAVE_UNDO
+	private ZStateBuffer stateBuffer = new ZStateBuffer(); // Reused by packState()
+	private int undoDepth = 1; // Number of states kept by SAVE_UNDO
+	private int undoBudget = 1 << 20; // Maximum size of the saved states, in bytes
+	private Executor saveExecutor; // Writes saved games in the background, or null
+	private Vector<FutureTask<Void>> pendingSaves = new Vector<FutureTask<Void>>(); // Background writes not known to be finished
     private boolean did_newline = false; // Set to true whenever NEW_LINE called--used by READ
     
     // Default alphabets for decoding Z-Strings
@@ -104,6 +135,12 @@ public class ZCPU extends Object implements Runnable {
           ':','(',')'}
     };
 
+    // An opcode handler.  Each entry in the dispatch table is one of
+    // these, usually a reference to one of the zop_ methods below.
+    private interface Opcode {
+        void execute();
+    }
+
     // The constructor takes an object that implements the
     // ZUserInterface interface as an argument, and initializes
     // various variables and objects (but does not load or start
@@ -112,10 +149,8 @@ public class ZCPU extends Object implements Runnable {
     {
         zui = ui;
         memory = new ZMemory();
-        callStack = new Stack();
         rndgen = new ZRandom();
         ioCard = new ZIOCard();
-        objTable = new ZObjectTable();
     }
 
     // The initialize method does several things: loads a game;
@@ -149,7 +184,11 @@ public class ZCPU extends Object implements Runnable {
         zui.initialize(version);
         rndgen.initialize(zui);
         ioCard.initialize(zui,memory,version,true);
+        objTable = ZObjectTable.create(version);
+        objTable.keepPredecessors = keepPredecessors;
         objTable.initialize(zui,memory,version);
+        instructionCache = new ZInstruction[(memory.dataLength >> ZMemory.PAGE_SHIFT) + 1][];
+        buildDispatchTable();
 
         // Get the program scale
         if (version <= 3)
@@ -242,10 +281,17 @@ public class ZCPU extends Object implements Runnable {
 
 		// Get the location of the main dictionary
 		mainDictionary = memory.fetchWord(0x08);
+		dictionaryAddrs = new int[4];
+		dictionaries = new ZDictionary[4];
+		numDictionaries = 0;
+		stringCache = new ZStringCache(2048);
 
 		// Get size of dynamic memory
 		dynamicMemorySize = memory.fetchWord(0x0e);
 
+		// Decode the abbreviations, now that we know where to find them.
+		expandAbbreviations();
+
         // Get any additional terminating characters, and pass them to
         // the user interface. (V5+)
         if (version >= 5) {
@@ -265,6 +311,127 @@ public class ZCPU extends Object implements Runnable {
         
         // Get the alternate character set, if there is one,
         // in V5+ games. (currently not implemented)
+
+        // Set up compilation of hot routines, if it's wanted.
+        if (compileThreshold > 0)
+            runtime = new ZRuntime(this,zui,memory,objTable,ioCard,rndgen,version,
+                                   globalVars,dynamicMemorySize,compileThreshold);
+        else
+            runtime = null;
+
+        // Nothing to undo yet
+        undoRing = new ZUndoRing(undoDepth,undoBudget);
+    }
+
+    // Routines called more than the given number of times are
+    // translated into JVM code, if they can be.  0, the default, turns
+    // this off.  This must be called before initialize().
+    public void setCompileThreshold(int calls)
+    {
+        compileThreshold = calls;
+    }
+
+    // Keep an index of each object's previous sibling, so that moving
+    // an object out of a long list of siblings takes constant time
+    // rather than a walk down the list.  It is off by default.  This
+    // must be called before initialize().
+    public void setPredecessorIndex(boolean on)
+    {
+        keepPredecessors = on;
+    }
+
+    // Set the number of states SAVE_UNDO keeps, so that RESTORE_UNDO
+    // can go back more than one move, and the most memory (in bytes)
+    // they may take up; the oldest states are dropped to keep within
+    // it.  The defaults are 1 state and 1MB.  This must be called
+    // before initialize().
+    public void setUndoLimits(int depth,int budget)
+    {
+        undoDepth = depth;
+        undoBudget = budget;
+    }
+
+    // Write saved games and auxiliary files in the background on the
+    // given executor, rather than making the game wait for them.  The
+    // game is told a save succeeded once its data has been gathered;
+    // if the write then fails, zui.saveFailed() is called.  Passing
+    // null, the default, turns this off.  An executor that runs tasks
+    // one at a time keeps saves to the same file in order.
+    public void setSaveExecutor(Executor executor)
+    {
+        saveExecutor = executor;
+    }
+
+    // Return the size in bytes of each state saved by SAVE_UNDO, most
+    // recent first.
+    public int[] getUndoSizes()
+    {
+        return undoRing.snapshotSizes();
+    }
+
+    // Return the state of the machine as a Quetzal saved game, from
+    // which resume() can carry on by executing the current instruction
+    // again; this is meant for a user interface that wants to put the
+    // machine away while it waits for input.  Return null if the
+    // machine is part way through an interrupt or compiled code, or is
+    // printing to a stream other than the screen, none of which a saved
+    // game can describe.  Also return null if the current instruction
+    // took any operands off the stack, since executing it again would
+    // take them a second time.  SAVE_UNDO states are not included.
+    public byte[] suspend()
+    {
+        ByteArrayOutputStream bos;
+        ZInstruction ins;
+
+        if ((!canSaveFrames()) || (ioCard.getOutputStream() != 1))
+            return null;
+        ins = fetchInstruction(curInstructionAddr);
+        for (int i=0;i<ins.numOperands;i++)
+            if ((ins.operandKinds[i] == ZInstruction.VARIABLE) && (ins.operands[i] == 0))
+                return null;
+        try {
+            bos = new ByteArrayOutputStream(4096);
+            writeQuetzal(new DataOutputStream(bos),curInstructionAddr);
+        }
+        catch (IOException ex) {
+            return null;
+        }
+        return bos.toByteArray();
+    }
+
+    // Set the machine to a state returned by suspend(), for run() to
+    // carry on from.  This must be called after initialize().  Return
+    // false, having changed nothing, if the state isn't one of this
+    // story-file.
+    public boolean resume(byte[] state)
+    {
+        int addr;
+
+        addr = readQuetzal(ByteBuffer.wrap(state));
+        if (addr == -1)
+            return false;
+        curCallFrame.pc = addr;
+        resumed = true;
+        return true;
+    }
+
+    // Return the hit and miss counts of the decoded-string cache.
+    public int getStringCacheHits()
+    {
+        return stringCache.hits;
+    }
+
+    public int getStringCacheMisses()
+    {
+        return stringCache.misses;
+    }
+
+    // Return the numbers of the objects that have the given attribute,
+    // in order.  Only the objects whose entries lie before the first
+    // property table are considered.
+    public int[] getObjectsWithAttribute(int attr)
+    {
+        return objTable.objectsWithAttribute(attr);
     }
 
     // The start method starts execution of the story-file as a separate thread.
@@ -296,608 +463,94 @@ public class ZCPU extends Object implements Runnable {
 				restartFlag = false;
 			}
 
-			// Create an initial call-stack frame
-	        curCallFrame = new ZCallFrame();
-			curCallFrame.pc = memory.fetchWord(0x06);
-			curCallFrame.routineStack = new Stack();
-			curCallFrame.numLocalVars = 0;
-			curCallFrame.callType = ZCallFrame.INTERRUPT; // This should never be examined.
-			curCallFrame.argCount = 0;
-			curCallFrame.frameNumber = 0;
-			callStack = new Stack();
+			// Create an initial call-stack frame, unless resume() has
+			// already set up the call stack.
+			if (!resumed) {
+				frameDepth = 0;
+				if (frames[0] == null)
+					frames[0] = new ZCallFrame();
+				curCallFrame = frames[0];
+				Arrays.fill(curCallFrame.localVars,0);
+				curCallFrame.pc = memory.fetchWord(0x06);
+				curCallFrame.stackBase = 0;
+				sp = 0;
+				curCallFrame.numLocalVars = 0;
+				curCallFrame.callType = ZCallFrame.INTERRUPT; // This should never be examined.
+				curCallFrame.argCount = 0;
+				curCallFrame.frameNumber = 0;
+			}
+			resumed = false;
 
 			// Now start executing code.  The
 			// return--if it does, we'll just return as well.
-			decodeLoop();
+			// ZMemory doesn't check addresses itself, so any bad
+			// memory access ends up here.
+			try {
+				decodeLoop();
+			}
+			catch (IndexOutOfBoundsException ex) {
+				zui.fatal("Memory fault: " + ex.getMessage());
+				return;
+			}
 		} while (restartFlag);
 
         return;
     }
 
     // This is the main loop of the ZMachine.  It decodes instructions
-    // and executes them.  It may be called recursively during
-    // interrupts.
+    // and executes them.  Interrupts run in the same loop; it is only
+    // called recursively when compiled code calls an interpreted
+    // routine.
     private void decodeLoop()
     {
-        int v;
-        int typebyte;
-        int maxops;
-        boolean done;
+        ZInstruction ins;
 
         while (true) { // Decode in an endless loop
-            // Grab the opcode, adjust the PC accordingly.  It is
-            // up to the implementation of each instruction to get
-            // its own result, branch and string arguments using
-            // utility functions.
+            // Get the decoded form of the instruction at the PC, and
+            // move the PC past it.  Result, branch and string arguments
+            // have already been decoded along with the operands.
 //			System.out.println(Integer.toHexString(curCallFrame.pc)); //db
-            curInstruction = memory.fetchByte(curCallFrame.pc);
-            curCallFrame.pc++;
+            curInstructionAddr = curCallFrame.pc;
+            ins = fetchInstruction(curInstructionAddr);
+            curCallFrame.pc += ins.length;
+            curInstruction = ins.instruction;
+            curOpcodeType = ins.opcodeType;
+            curOpcode = ins.opcode;
+            curResult = ins.result;
+            curBranch = ins.branch;
+            curBranchReversed = ins.branchReversed;
+            curStringAddr = ins.stringAddr;
 
             ///////////////////////////////////////////////////////////
-            // Get the operands for this instruction, and type it.
+            // Get the values of the operands.  Variables must be read
+            // in order, since reading variable 0 pops the stack.
             ///////////////////////////////////////////////////////////
-            if ((curInstruction >= 0x00) && (curInstruction <= 0x7f)) {
-                // A non-variable 2OP.
-                // Get first operand
-                if ((curInstruction & 0x40) == 0x40) { // A variable number
-                    v = memory.fetchByte(curCallFrame.pc);
-                    op1 = getVariable(v);
-                    op1type = ARGTYPE_WORD;
-                }
-                else { // A byte constant
-                    op1 = memory.fetchByte(curCallFrame.pc);
-                    op1type = ARGTYPE_BYTE;
-                }
-                curCallFrame.pc++;
-
-                // Get second operand
-                if ((curInstruction & 0x20) == 0x20) { // A variable number
-                    v = memory.fetchByte(curCallFrame.pc);
-                    op2 = getVariable(v);
-                    op2type = ARGTYPE_WORD;
-                }
-                else { // A byte constant
-                    op2 = memory.fetchByte(curCallFrame.pc);
-                    op2type = ARGTYPE_BYTE;
-                }
-                curCallFrame.pc++;
-
-                curOpcodeType = OPTYPE_2OP;
-                curOpcode = (curInstruction & 0x1f);
-            }
-            else if ((curInstruction >= 0x80) && (curInstruction <= 0xaf)) {
-                // A 1OP.
-                switch (curInstruction & 0x30) {
-                    case 0x00 : // A word constant
-                        op1 = memory.fetchWord(curCallFrame.pc);
-                        op1type = ARGTYPE_WORD;
-                        curCallFrame.pc += 2;
-                        break;
-                    case 0x10 : // A byte constant
-                        op1 = memory.fetchByte(curCallFrame.pc);
-                        op1type = ARGTYPE_BYTE;
-                        curCallFrame.pc++;
-                        break;
-                    case 0x20 : // A variable
-                        v = memory.fetchByte(curCallFrame.pc);
-                        op1 = getVariable(v);
-                        op1type = ARGTYPE_WORD;
-                        curCallFrame.pc++;
-                        break;
-                }
-
-                curOpcodeType = OPTYPE_1OP;
-                curOpcode = (curInstruction & 0x0f);
-            }
-            else if ((curInstruction >= 0xb0) && (curInstruction <= 0xbf) &&
-                     (curInstruction != 0xbe)) {
-                // A 0OP.
-                curOpcodeType = OPTYPE_0OP;
-                curOpcode = (curInstruction & 0x0f);
-            }
-            else if ((curInstruction >= 0xc0) && (curInstruction <= 0xdf) &&
-                     (curInstruction != 0xc1)) {
-                // A variable 2OP.
-                // Get the type byte.
-                typebyte = memory.fetchByte(curCallFrame.pc);
-                curCallFrame.pc++;
-
-                // Get the first operand
-                switch (typebyte & 0xc0) {
-                    case 0x00 : // Word constant
-                        op1 = memory.fetchWord(curCallFrame.pc);
-                        op1type = ARGTYPE_WORD;
-                        curCallFrame.pc += 2;
-                        break;
-                    case 0x40 : // A byte constant
-                        op1 = memory.fetchByte(curCallFrame.pc);
-                        op1type = ARGTYPE_BYTE;
-                        curCallFrame.pc++;
-                        break;
-                    case 0x80 : // A variable
-                        v = memory.fetchByte(curCallFrame.pc);
-                        op1 = getVariable(v);
-                        op1type = ARGTYPE_WORD;
-                        curCallFrame.pc++;
+            numvops = ins.numOperands;
+            for (int i = 0;i < numvops;i++) {
+                switch (ins.operandKinds[i]) {
+                    case ZInstruction.WORD_CONSTANT :
+                        vops[i] = ins.operands[i];
+                        voptypes[i] = ARGTYPE_WORD;
                         break;
-                    case 0xc0 : // An error
-                        zui.fatal("Error: Variable 2OP with no ops.");
-                }
-
-                // Get the second operand
-                switch (typebyte & 0x30) {
-                    case 0x00 : // Word constant
-                        op2 = memory.fetchWord(curCallFrame.pc);
-                        op2type = ARGTYPE_WORD;
-                        curCallFrame.pc += 2;
+                    case ZInstruction.BYTE_CONSTANT :
+                        vops[i] = ins.operands[i];
+                        voptypes[i] = ARGTYPE_BYTE;
                         break;
-                    case 0x10 : // A byte constant
-                        op2 = memory.fetchByte(curCallFrame.pc);
-                        op2type = ARGTYPE_BYTE;
-                        curCallFrame.pc++;
+                    case ZInstruction.VARIABLE :
+                        vops[i] = getVariable(ins.operands[i]);
+                        voptypes[i] = ARGTYPE_WORD;
                         break;
-                    case 0x20 : // A variable
-                        v = memory.fetchByte(curCallFrame.pc);
-                        op2 = getVariable(v);
-                        op2type = ARGTYPE_WORD;
-                        curCallFrame.pc++;
-                        break;
-                    case 0x30 : // An error
-                        zui.fatal("Error: Variable 2OP with one op.");
                 }
-
-                curOpcodeType = OPTYPE_2OP;
-                curOpcode = (curInstruction & 0x1f);
             }
-            else if (((curInstruction >= 0xe0) && (curInstruction <= 0xff)) ||
-                     (curInstruction == 0xc1)) {
-                // Variable instruction, or 0xc1 (JE with up to 4 operands)
-                // Get the operands
-                numvops = 0;
-                if ((curInstruction == 0xec) || (curInstruction == 0xfa)) {
-                    // Double-variables
-                    typebyte = memory.fetchWord(curCallFrame.pc);
-                    curCallFrame.pc += 2;
-                    maxops = 8;
-                }
-                else {
-                    typebyte = memory.fetchByte(curCallFrame.pc);
-                    curCallFrame.pc++;
-                    maxops = 4;
-                }
-                done = false;
-                for (int i=0;((i<maxops) && (!done));i++) {
-                    switch ((typebyte >> ((maxops-1-i)*2)) & 0x03) {
-                        case 0x00 : // Word constant
-                            vops[i] = memory.fetchWord(curCallFrame.pc);
-                            voptypes[i] = ARGTYPE_WORD;
-                            curCallFrame.pc += 2;
-                            numvops++;
-                            break;
-                        case 0x01 : // Byte constant
-                            vops[i] = memory.fetchByte(curCallFrame.pc);
-                            voptypes[i] = ARGTYPE_BYTE;
-                            curCallFrame.pc++;
-                            numvops++;
-                            break;
-                        case 0x02 : // A variable
-                            v = memory.fetchByte(curCallFrame.pc);
-                            vops[i] = getVariable(v);
-                            voptypes[i] = ARGTYPE_WORD;
-                            curCallFrame.pc++;
-                            numvops++;
-                            break;
-                        case 0x03 : // End of arguments
-                            done = true;
-                            break;
-                    }
-                }
-
-                if (curInstruction == 0xc1) {
-                    curOpcodeType = OPTYPE_2OP;
-                    curOpcode = 0x01;
-                }
-                else {
-                    curOpcodeType = OPTYPE_VAR;
-                    curOpcode = (curInstruction & 0x1f);
-                }
-            }
-            else if (curInstruction == 0xbe) {
-                // Extended instruction.  Decode similarly to a variable instruction.
-                curOpcodeType = OPTYPE_EXT;
-                curOpcode = memory.fetchByte(curCallFrame.pc);
-                curCallFrame.pc++;
-
-                numvops = 0;
-                typebyte = memory.fetchByte(curCallFrame.pc);
-                curCallFrame.pc++;
-                done = false;
-                for (int i=0;((i<4) && (!done));i++) {
-                    switch ((typebyte >> ((3-i)*2)) & 0x03) {
-                        case 0x00 : // Word constant
-                            vops[i] = memory.fetchWord(curCallFrame.pc);
-                            voptypes[i] = ARGTYPE_WORD;
-                            curCallFrame.pc += 2;
-                            numvops++;
-                            break;
-                        case 0x01 : // Byte constant
-                            vops[i] = memory.fetchByte(curCallFrame.pc);
-                            voptypes[i] = ARGTYPE_BYTE;
-                            curCallFrame.pc++;
-                            numvops++;
-                            break;
-                        case 0x02 : // A variable
-                            v = memory.fetchByte(curCallFrame.pc);
-                            vops[i] = getVariable(v);
-                            voptypes[i] = ARGTYPE_WORD;
-                            curCallFrame.pc++;
-                            numvops++;
-                            break;
-                        case 0x03 : // End of arguments
-                            done = true;
-                            break;
-                    }
-                }
-            }
-            else
-                // This should never happen.
-                zui.fatal("Malformed instruction: " + curInstruction);
+            op1 = vops[0];
+            op1type = voptypes[0];
+            op2 = vops[1];
+            op2type = voptypes[1];
 
             ///////////////////////////////////////////////////////////
             // Dispatch the instruction.
             ///////////////////////////////////////////////////////////
-            if (curOpcodeType == OPTYPE_0OP) {
-                // 0OP opcodes.
-                switch (curOpcode) {
-                    case 0x00 : zop_rtrue();
-                                break;
-                    case 0x01 : zop_rfalse();
-                                break;
-                    case 0x02 : getString();
-                                zop_print();
-                                break;
-                    case 0x03 : getString();
-                                zop_print_rtrue();
-                                break;
-                    case 0x04 : zop_nop();
-                                break;
-                    case 0x05 : if (version < 4)
-                                    getBranch();
-                                else if (version == 4)
-                                    getResult();
-                                else
-                                    zui.fatal("SAVE 0OP unsupported after version 4.");
-                                zop_save();
-                                break;
-                    case 0x06 : if (version < 4)
-                                    getBranch();
-                                else if (version == 4)
-                                    getResult();
-                                else
-                                    zui.fatal("RESTORE 0OP unsupported after version 4.");
-                                zop_restore();
-                                break;
-                    case 0x07 : zop_restart();
-                                break;
-                    case 0x08 : zop_ret_pulled();
-                                break;
-                    case 0x09 : if (version < 5)
-                                    zop_pop();
-                                else {
-                                    getResult();
-                                    zop_catch();
-                                }
-                                break;
-                    case 0x0a : zop_quit();
-                                break;
-                    case 0x0b : zop_new_line();
-                                break;
-                    case 0x0c : zop_show_status();
-                                break;
-                    case 0x0d : getBranch();
-                                zop_verify();
-                                break;
-                    case 0x0e : // Start of extended instruction
-                                zui.fatal("Found opcode 0xBE in 0OP dispatcher");
-                    case 0x0f : getBranch();
-                                zop_piracy();
-                                break;
-                    default : zui.fatal("Unknown 0OP - probably a bug.");
-                }
-            }
-            else if (curOpcodeType == OPTYPE_1OP) {
-                // 1OP opcodes
-                switch (curOpcode) {
-                    case 0x00 : getBranch();
-                                zop_jz();
-                                break;
-                    case 0x01 : getResult();
-                                getBranch();
-                                zop_get_sibling();
-                                break;
-                    case 0x02 : getResult();
-                                getBranch();
-                                zop_get_child();
-                                break;
-                    case 0x03 : getResult();
-                                zop_get_parent();
-                                break;
-                    case 0x04 : getResult();
-                                zop_get_prop_len();
-                                break;
-                    case 0x05 : zop_inc();
-                                break;
-                    case 0x06 : zop_dec();
-                                break;
-                    case 0x07 : zop_print_addr();
-                                break;
-                    case 0x08 : getResult();
-                                zop_call_f0();
-                                break;
-                    case 0x09 : zop_remove_obj();
-                                break;
-                    case 0x0a : zop_print_obj();
-                                break;
-                    case 0x0b : zop_ret();
-                                break;
-                    case 0x0c : zop_jump();
-                                break;
-                    case 0x0d : zop_print_paddr();
-                                break;
-                    case 0x0e : getResult();
-                                zop_load();
-                                break;
-                    case 0x0f : if (version < 5) {
-                                    getResult();
-                                    zop_not();
-                                }
-                                else
-                                    zop_call_p0();
-								break;
-                    default : zui.fatal("Unknown 1OP - probably a bug.");
-                }
-            }
-            else if (curOpcodeType == OPTYPE_2OP) {
-                // 2OP opcodes
-                switch (curOpcode) {
-                    case 0x00 : zui.fatal("Unspecified instruction: " + curInstruction);
-                    case 0x01 : getBranch();
-                                zop_je();
-                                break;
-                    case 0x02 : getBranch();
-                                zop_jl();
-                                break;
-                    case 0x03 : getBranch();
-                                zop_jg();
-                                break;
-                    case 0x04 : getBranch();
-                                zop_dec_jl();
-                                break;
-                    case 0x05 : getBranch();
-                                zop_inc_jg();
-                                break;
-                    case 0x06 : getBranch();
-                                zop_jin();
-                                break;
-                    case 0x07 : getBranch();
-                                zop_test();
-                                break;
-                    case 0x08 : getResult();
-                                zop_or();
-                                break;
-                    case 0x09 : getResult();
-                                zop_and();
-                                break;
-                    case 0x0a : getBranch();
-                                zop_test_attr();
-                                break;
-                    case 0x0b : zop_set_attr();
-                                break;
-                    case 0x0c : zop_clear_attr();
-                                break;
-                    case 0x0d : zop_store();
-                                break;
-                    case 0x0e : zop_insert_obj();
-                                break;
-                    case 0x0f : getResult();
-                                zop_loadw();
-                                break;
-                    case 0x10 : getResult();
-                                zop_loadb();
-                                break;
-                    case 0x11 : getResult();
-                                zop_get_prop();
-                                break;
-                    case 0x12 : getResult();
-                                zop_get_prop_addr();
-                                break;
-                    case 0x13 : getResult();
-                                zop_get_next_prop();
-                                break;
-                    case 0x14 : getResult();
-                                zop_add();
-                                break;
-                    case 0x15 : getResult();
-                                zop_sub();
-                                break;
-                    case 0x16 : getResult();
-                                zop_mul();
-                                break;
-                    case 0x17 : getResult();
-                                zop_div();
-                                break;
-                    case 0x18 : getResult();
-                                zop_mod();
-                                break;
-                    case 0x19 : getResult();
-                                zop_call_f1();
-                                break;
-                    case 0x1a : zop_call_p1();
-                                break;
-                    case 0x1b : zop_set_colour();
-                                break;
-                    case 0x1c : zop_throw();
-                                break;
-                    case 0x1d :
-                    case 0x1e :
-                    case 0x1f : zui.fatal("Unspecified instruction: " + curInstruction);
-                    default : zui.fatal("Unknown 2OP.  Probably a bug.");
-                }
-            }
-            else if (curOpcodeType == OPTYPE_VAR) {
-                // VAR instructions
-                switch (curOpcode) {
-                    case 0x00 : getResult();
-                                zop_call_fv();
-                                break;
-                    case 0x01 : zop_storew();
-                                break;
-                    case 0x02 : zop_storeb();
-                                break;
-                    case 0x03 : zop_put_prop();
-                                break;
-                    case 0x04 : if (version >= 5)
-                                    getResult();
-                                zop_read();
-                                break;
-                    case 0x05 : zop_print_char();
-                                break;
-                    case 0x06 : zop_print_num();
-                                break;
-                    case 0x07 : getResult();
-								zop_random();
-                                break;
-                    case 0x08 : zop_push();
-                                break;
-                    case 0x09 : zop_pull();
-                                break;
-                    case 0x0a : zop_split_screen();
-                                break;
-                    case 0x0b : zop_set_window();
-                                break;
-                    case 0x0c : getResult();
-                                zop_call_fd();
-                                break;
-                    case 0x0d : zop_erase_window();
-                                break;
-                    case 0x0e : zop_erase_line();
-                                break;
-                    case 0x0f : zop_set_cursor();
-                                break;
-                    case 0x10 : zop_get_cursor();
-                                break;
-                    case 0x11 : zop_set_text_style();
-                                break;
-                    case 0x12 : zop_buffer_mode();
-                                break;
-                    case 0x13 : zop_output_stream();
-                                break;
-                    case 0x14 : zop_input_stream();
-                                break;
-                    case 0x15 : zop_sound();
-                                break;
-                    case 0x16 : getResult();
-                                zop_read_char();
-                                break;
-                    case 0x17 : getResult();
-                                getBranch();
-                                zop_scan_table();
-                                break;
-                    case 0x18 : getResult();
-                                op1 = vops[0];
-                                op1type = voptypes[0];
-                                zop_not();
-                                break;
-                    case 0x19 : zop_call_pv();
-                                break;
-                    case 0x1a : zop_call_pv();
-                                break;
-                    case 0x1b : zop_tokenise();
-                                break;
-                    case 0x1c : zop_encode_text();
-                                break;
-                    case 0x1d : zop_copy_table();
-                                break;
-                    case 0x1e : zop_print_table();
-                                break;
-                    case 0x1f : getBranch();
-                                zop_check_arg_count();
-                                break;
-                    default : zui.fatal("Unknown VAR - probably a bug.");
-                }
-            }
-            else if (curOpcodeType == OPTYPE_EXT) {
-                // Extended instructions
-                switch (curOpcode) {
-                    case 0x00 : getResult();
-                                zop_ext_save();
-                                break;
-                    case 0x01 : getResult();
-                                zop_ext_restore();
-                                break;
-                    case 0x02 : getResult();
-                                zop_log_shift();
-                                break;
-                    case 0x03 : getResult();
-                                zop_art_shift();
-                                break;
-                    case 0x04 : getResult();
-                                zop_set_font();
-                                break;
-                    case 0x05 : zop_draw_picture();
-                                break;
-                    case 0x06 : getBranch();
-                                zop_picture_data();
-                                break;
-                    case 0x07 : zop_erase_picture();
-                                break;
-                    case 0x08 : zop_set_margins();
-                                break;
-                    case 0x09 : getResult();
-                                zop_save_undo();
-                                break;
-                    case 0x0a : getResult();
-                                zop_restore_undo();
-                                break;
-                    case 0x0b :
-                    case 0x0c :
-                    case 0x0d :
-                    case 0x0e :
-                    case 0x0f : zui.fatal("Unspecified EXT instruction: " + curOpcode);
-                    case 0x10 : zop_move_window();
-                                break;
-                    case 0x11 : zop_window_size();
-                                break;
-                    case 0x12 : zop_window_style();
-                                break;
-                    case 0x13 : getResult();
-                                zop_get_wind_prop();
-                                break;
-                    case 0x14 : zop_scroll_window();
-                                break;
-                    case 0x15 : zop_pop_stack();
-                                break;
-                    case 0x16 : zop_read_mouse();
-                                break;
-                    case 0x17 : zop_mouse_window();
-                                break;
-                    case 0x18 : getBranch();
-                                zop_push_stack();
-                                break;
-                    case 0x19 : zop_put_wind_prop();
-                                break;
-                    case 0x1a : zop_print_form();
-                                break;
-                    case 0x1b : getBranch();
-                                zop_make_menu();
-                                break;
-                    case 0x1c : zop_picture_table();
-                                break;
-                    default : zui.fatal("Unspecified EXT instruction: " + curOpcode);
-                }
-            }
-            else
-                zui.fatal("Unknown instruction: " + curInstruction);
+            dispatchTable[ins.handler].execute();
 
             if (decode_ret_flag) {
                 // An instruction has indicated that this decodeLoop
@@ -912,48 +565,458 @@ public class ZCPU extends Object implements Runnable {
     }
 
 
+    // Build the table of opcode handlers for this version of the
+    // Z-Machine.  Entries 0-255 are indexed by instruction byte, and
+    // entries 256-511 by the opcode of an extended (0xBE) instruction.
+    // Opcodes whose meaning depends on the version are resolved here,
+    // once, rather than every time they are executed.
+    private void buildDispatchTable()
+    {
+        dispatchTable = new Opcode[512];
+        for (int i = 0;i < 256;i++) {
+            if (i <= 0x7f) // Long 2OPs
+                dispatchTable[i] = handler2OP(i & 0x1f);
+            else if (i <= 0xaf) // 1OPs
+                dispatchTable[i] = handler1OP(i & 0x0f);
+            else if (i <= 0xbf) // 0OPs (and 0xBE, which is never dispatched directly)
+                dispatchTable[i] = handler0OP(i & 0x0f);
+            else if (i <= 0xdf) // Variable-form 2OPs
+                dispatchTable[i] = handler2OP(i & 0x1f);
+            else // VARs
+                dispatchTable[i] = handlerVAR(i & 0x1f);
+            dispatchTable[256 + i] = handlerEXT(i);
+        }
+    }
+
+    // Return the handler for the given 0OP opcode.
+    private Opcode handler0OP(int opcode)
+    {
+        switch (opcode) {
+            case 0x00 : return this::zop_rtrue;
+            case 0x01 : return this::zop_rfalse;
+            case 0x02 : return () -> { getString(); zop_print(); };
+            case 0x03 : return () -> { getString(); zop_print_rtrue(); };
+            case 0x04 : return this::zop_nop;
+            case 0x05 : if (version > 4)
+                            return () -> zui.fatal("SAVE 0OP unsupported after version 4.");
+                        return this::zop_save;
+            case 0x06 : if (version > 4)
+                            return () -> zui.fatal("RESTORE 0OP unsupported after version 4.");
+                        return this::zop_restore;
+            case 0x07 : return this::zop_restart;
+            case 0x08 : return this::zop_ret_pulled;
+            case 0x09 : if (version < 5)
+                            return this::zop_pop;
+                        return this::zop_catch;
+            case 0x0a : return this::zop_quit;
+            case 0x0b : return this::zop_new_line;
+            case 0x0c : return this::zop_show_status;
+            case 0x0d : return this::zop_verify;
+            case 0x0e : // Start of extended instruction
+                        return () -> zui.fatal("Found opcode 0xBE in 0OP dispatcher");
+            case 0x0f : return this::zop_piracy;
+            default : return () -> zui.fatal("Unknown 0OP - probably a bug.");
+        }
+    }
+
+    // Return the handler for the given 1OP opcode.
+    private Opcode handler1OP(int opcode)
+    {
+        switch (opcode) {
+            case 0x00 : return this::zop_jz;
+            case 0x01 : return this::zop_get_sibling;
+            case 0x02 : return this::zop_get_child;
+            case 0x03 : return this::zop_get_parent;
+            case 0x04 : return this::zop_get_prop_len;
+            case 0x05 : return this::zop_inc;
+            case 0x06 : return this::zop_dec;
+            case 0x07 : return this::zop_print_addr;
+            case 0x08 : return this::zop_call_f0;
+            case 0x09 : return this::zop_remove_obj;
+            case 0x0a : return this::zop_print_obj;
+            case 0x0b : return this::zop_ret;
+            case 0x0c : return this::zop_jump;
+            case 0x0d : return this::zop_print_paddr;
+            case 0x0e : return this::zop_load;
+            case 0x0f : if (version < 5)
+                            return this::zop_not;
+                        return this::zop_call_p0;
+            default : return () -> zui.fatal("Unknown 1OP - probably a bug.");
+        }
+    }
+
+    // Return the handler for the given 2OP opcode.
+    private Opcode handler2OP(int opcode)
+    {
+        switch (opcode) {
+            case 0x01 : return this::zop_je;
+            case 0x02 : return this::zop_jl;
+            case 0x03 : return this::zop_jg;
+            case 0x04 : return this::zop_dec_jl;
+            case 0x05 : return this::zop_inc_jg;
+            case 0x06 : return this::zop_jin;
+            case 0x07 : return this::zop_test;
+            case 0x08 : return this::zop_or;
+            case 0x09 : return this::zop_and;
+            case 0x0a : return this::zop_test_attr;
+            case 0x0b : return this::zop_set_attr;
+            case 0x0c : return this::zop_clear_attr;
+            case 0x0d : return this::zop_store;
+            case 0x0e : return this::zop_insert_obj;
+            case 0x0f : return this::zop_loadw;
+            case 0x10 : return this::zop_loadb;
+            case 0x11 : return this::zop_get_prop;
+            case 0x12 : return this::zop_get_prop_addr;
+            case 0x13 : return this::zop_get_next_prop;
+            case 0x14 : return this::zop_add;
+            case 0x15 : return this::zop_sub;
+            case 0x16 : return this::zop_mul;
+            case 0x17 : return this::zop_div;
+            case 0x18 : return this::zop_mod;
+            case 0x19 : return this::zop_call_f1;
+            case 0x1a : return this::zop_call_p1;
+            case 0x1b : return this::zop_set_colour;
+            case 0x1c : return this::zop_throw;
+            default : // 0x00, 0x1d-0x1f
+                return () -> zui.fatal("Unspecified instruction: " + curInstruction);
+        }
+    }
+
+    // Return the handler for the given VAR opcode.
+    private Opcode handlerVAR(int opcode)
+    {
+        switch (opcode) {
+            case 0x00 : return this::zop_call_fv;
+            case 0x01 : return this::zop_storew;
+            case 0x02 : return this::zop_storeb;
+            case 0x03 : return this::zop_put_prop;
+            case 0x04 : return this::zop_read;
+            case 0x05 : return this::zop_print_char;
+            case 0x06 : return this::zop_print_num;
+            case 0x07 : return this::zop_random;
+            case 0x08 : return this::zop_push;
+            case 0x09 : return this::zop_pull;
+            case 0x0a : return this::zop_split_screen;
+            case 0x0b : return this::zop_set_window;
+            case 0x0c : return this::zop_call_fd;
+            case 0x0d : return this::zop_erase_window;
+            case 0x0e : return this::zop_erase_line;
+            case 0x0f : return this::zop_set_cursor;
+            case 0x10 : return this::zop_get_cursor;
+            case 0x11 : return this::zop_set_text_style;
+            case 0x12 : return this::zop_buffer_mode;
+            case 0x13 : return this::zop_output_stream;
+            case 0x14 : return this::zop_input_stream;
+            case 0x15 : return this::zop_sound;
+            case 0x16 : return this::zop_read_char;
+            case 0x17 : return this::zop_scan_table;
+            case 0x18 : return this::zop_not;
+            case 0x19 : return this::zop_call_pv;
+            case 0x1a : return this::zop_call_pv;
+            case 0x1b : return this::zop_tokenise;
+            case 0x1c : return this::zop_encode_text;
+            case 0x1d : return this::zop_copy_table;
+            case 0x1e : return this::zop_print_table;
+            case 0x1f : return this::zop_check_arg_count;
+            default : return () -> zui.fatal("Unknown VAR - probably a bug.");
+        }
+    }
+
+    // Return the handler for the given EXT opcode.
+    private Opcode handlerEXT(int opcode)
+    {
+        switch (opcode) {
+            case 0x00 : return this::zop_ext_save;
+            case 0x01 : return this::zop_ext_restore;
+            case 0x02 : return this::zop_log_shift;
+            case 0x03 : return this::zop_art_shift;
+            case 0x04 : return this::zop_set_font;
+            case 0x05 : return this::zop_draw_picture;
+            case 0x06 : return this::zop_picture_data;
+            case 0x07 : return this::zop_erase_picture;
+            case 0x08 : return this::zop_set_margins;
+            case 0x09 : return this::zop_save_undo;
+            case 0x0a : return this::zop_restore_undo;
+            case 0x10 : return this::zop_move_window;
+            case 0x11 : return this::zop_window_size;
+            case 0x12 : return this::zop_window_style;
+            case 0x13 : return this::zop_get_wind_prop;
+            case 0x14 : return this::zop_scroll_window;
+            case 0x15 : return this::zop_pop_stack;
+            case 0x16 : return this::zop_read_mouse;
+            case 0x17 : return this::zop_mouse_window;
+            case 0x18 : return this::zop_push_stack;
+            case 0x19 : return this::zop_put_wind_prop;
+            case 0x1a : return this::zop_print_form;
+            case 0x1b : return this::zop_make_menu;
+            case 0x1c : return this::zop_picture_table;
+            default : return () -> zui.fatal("Unspecified EXT instruction: " + curOpcode);
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////
     // Utility functions
     ///////////////////////////////////////////////////////////////////
 
-    // This method gets the <branch> argument of the current
-    // instruction.  It stores the value of the argument in the
-    // global variable curBranch, and sets curBranchReversed to
-    // true if the logic of the branch is reversed.  curCallFrame.pc
-    // should be pointing at the argument when this is called;
-    // it is adjusted accordingly.
-    private void getBranch()
+    // This method returns the decoded form of the instruction at
+    // addr, from the instruction cache if possible.  The cache is kept
+    // in pages of ZMemory.PAGE_SIZE entries, each allocated when an
+    // instruction in it is first decoded, since most of a story-file
+    // is not code.  If any memory holding a cached instruction has
+    // been written since the last call, the whole cache is thrown away
+    // first.
+    ZInstruction fetchInstruction(int addr)
     {
-        int b1, b2;
-        int sval;
+        ZInstruction[] page;
+        ZInstruction ins;
+
+        if (memory.codeModified)
+            flushCodeCaches();
+
+        if ((addr < 0) || (addr >= memory.dataLength))
+            zui.fatal("Memory fault: address " + addr);
+
+        page = instructionCache[addr >> ZMemory.PAGE_SHIFT];
+        if (page == null) {
+            page = new ZInstruction[ZMemory.PAGE_SIZE];
+            instructionCache[addr >> ZMemory.PAGE_SHIFT] = page;
+        }
+        ins = page[addr & (ZMemory.PAGE_SIZE - 1)];
+        if (ins == null) {
+            ins = new ZInstruction();
+            decodeInstruction(addr,ins);
+            page[addr & (ZMemory.PAGE_SIZE - 1)] = ins;
+            if (addr < memory.codeLow)
+                memory.codeLow = addr;
+        }
+        return ins;
+    }
+
+    // Throw away all decoded and compiled code.
+    void flushCodeCaches()
+    {
+        Arrays.fill(instructionCache,null);
+        memory.codeLow = Integer.MAX_VALUE;
+        memory.codeModified = false;
+        if (runtime != null)
+            runtime.flush();
+    }
+
+    // Decode the instruction at addr into ins.  This works out the
+    // type and opcode of the instruction, the kind and value of each
+    // operand, and its <result>, <branch> and <string> arguments; none
+    // of these depend on the state of the machine, so they can be
+    // cached.  The values of variable operands are fetched each time
+    // the instruction is executed.
+    private void decodeInstruction(int addr,ZInstruction ins)
+    {
+        int pc = addr;
+        int typebyte;
+        int maxops;
+        int n;
+        int b1, b2, sval, w;
+        byte[] kinds = new byte[8];
+        int[] values = new int[8];
+
+        ins.instruction = memory.fetchByte(pc);
+        pc++;
+        n = 0;
+
+        if ((ins.instruction >= 0x00) && (ins.instruction <= 0x7f)) {
+            // A non-variable 2OP.  Each operand is a byte constant
+            // or a variable number.
+            kinds[0] = ((ins.instruction & 0x40) == 0x40) ?
+                       (byte)ZInstruction.VARIABLE : (byte)ZInstruction.BYTE_CONSTANT;
+            values[0] = memory.fetchByte(pc);
+            kinds[1] = ((ins.instruction & 0x20) == 0x20) ?
+                       (byte)ZInstruction.VARIABLE : (byte)ZInstruction.BYTE_CONSTANT;
+            values[1] = memory.fetchByte(pc + 1);
+            pc += 2;
+            n = 2;
+            ins.opcodeType = OPTYPE_2OP;
+            ins.opcode = (ins.instruction & 0x1f);
+        }
+        else if ((ins.instruction >= 0x80) && (ins.instruction <= 0xaf)) {
+            // A 1OP.
+            pc = decodeOperand(pc,(ins.instruction >> 4) & 0x03,kinds,values,0);
+            n = 1;
+            ins.opcodeType = OPTYPE_1OP;
+            ins.opcode = (ins.instruction & 0x0f);
+        }
+        else if ((ins.instruction >= 0xb0) && (ins.instruction <= 0xbf) &&
+                 (ins.instruction != 0xbe)) {
+            // A 0OP.
+            ins.opcodeType = OPTYPE_0OP;
+            ins.opcode = (ins.instruction & 0x0f);
+        }
+        else if ((ins.instruction >= 0xc0) && (ins.instruction <= 0xdf) &&
+                 (ins.instruction != 0xc1)) {
+            // A variable 2OP.
+            typebyte = memory.fetchByte(pc);
+            pc++;
+            if ((typebyte & 0xc0) == 0xc0)
+                zui.fatal("Error: Variable 2OP with no ops.");
+            pc = decodeOperand(pc,(typebyte >> 6) & 0x03,kinds,values,0);
+            if ((typebyte & 0x30) == 0x30)
+                zui.fatal("Error: Variable 2OP with one op.");
+            pc = decodeOperand(pc,(typebyte >> 4) & 0x03,kinds,values,1);
+            n = 2;
+            ins.opcodeType = OPTYPE_2OP;
+            ins.opcode = (ins.instruction & 0x1f);
+        }
+        else if (((ins.instruction >= 0xe0) && (ins.instruction <= 0xff)) ||
+                 (ins.instruction == 0xc1) || (ins.instruction == 0xbe)) {
+            // Variable instruction, 0xc1 (JE with up to 4 operands),
+            // or an extended instruction.
+            if (ins.instruction == 0xbe) {
+                ins.opcodeType = OPTYPE_EXT;
+                ins.opcode = memory.fetchByte(pc);
+                pc++;
+            }
+            else if (ins.instruction == 0xc1) {
+                ins.opcodeType = OPTYPE_2OP;
+                ins.opcode = 0x01;
+            }
+            else {
+                ins.opcodeType = OPTYPE_VAR;
+                ins.opcode = (ins.instruction & 0x1f);
+            }
+
+            if ((ins.instruction == 0xec) || (ins.instruction == 0xfa)) {
+                // Double-variables
+                typebyte = memory.fetchWord(pc);
+                pc += 2;
+                maxops = 8;
+            }
+            else {
+                typebyte = memory.fetchByte(pc);
+                pc++;
+                maxops = 4;
+            }
+            while ((n < maxops) && (((typebyte >> ((maxops-1-n)*2)) & 0x03) != 0x03)) {
+                pc = decodeOperand(pc,(typebyte >> ((maxops-1-n)*2)) & 0x03,kinds,values,n);
+                n++;
+            }
+        }
+        else
+            zui.fatal("Malformed instruction: " + ins.instruction);
+
+        ins.numOperands = n;
+        ins.operandKinds = new byte[n];
+        ins.operands = new int[n];
+        System.arraycopy(kinds,0,ins.operandKinds,0,n);
+        System.arraycopy(values,0,ins.operands,0,n);
+
+        // Get the <result> argument, if any.
+        if (hasResult(ins.opcodeType,ins.opcode)) {
+            ins.result = memory.fetchByte(pc);
+            pc++;
+        }
+        else
+            ins.result = -1;
 
-        // Get the first byte of the branch
-        b1 = memory.fetchByte(curCallFrame.pc);
-        curCallFrame.pc++;
+        // Get the <branch> argument, if any.
+        if (hasBranch(ins.opcodeType,ins.opcode)) {
+            b1 = memory.fetchByte(pc);
+            pc++;
 
-        // Check to see if logic is reversed
-        if ((b1 & 0x80) == 0x80)
-            curBranchReversed = false;
+            // Check to see if logic is reversed
+            ins.branchReversed = ((b1 & 0x80) != 0x80);
+
+            if ((b1 & 0x40) == 0x40) // A one-byte branch
+                ins.branch = (b1 & 0x3f);
+            else {
+                // Otherwise, construct a signed branch value.
+                b2 = memory.fetchByte(pc);
+                pc++;
+                sval = (((((b1 & 0x3f) << 8) & 0x3f00) | b2) & 0x3fff);
+                // If the following makes no sense, see the Z-Machine spec
+                // on signed numbers.
+                if ((sval & 0x2000) == 0x2000)
+                    ins.branch = (sval - 16384);
+                else
+                    ins.branch = sval;
+            }
+        }
+
+        // PRINT and PRINT_RET are followed by a <string> argument;
+        // find its end.
+        if ((ins.opcodeType == OPTYPE_0OP) &&
+            ((ins.opcode == 0x02) || (ins.opcode == 0x03))) {
+            ins.stringAddr = pc;
+            do {
+                w = memory.fetchWord(pc);
+                pc += 2;
+            } while ((w & 0x8000) == 0);
+        }
         else
-            curBranchReversed = true;
+            ins.stringAddr = 0;
 
-        // If the branch is only one byte long, just set its
-        // value and return.
-        if ((b1 & 0x40) == 0x40) {
-            curBranch = (b1 & 0x3f);
-            return;
+        // Find the instruction's entry in the dispatch table
+        if (ins.opcodeType == OPTYPE_EXT)
+            ins.handler = 256 + ins.opcode;
+        else
+            ins.handler = ins.instruction;
+
+        ins.length = pc - addr;
+    }
+
+    // Decode a single operand of the given type (as found in a type
+    // byte) at pc into kinds[i] and values[i], and return the address
+    // of the following byte.
+    private int decodeOperand(int pc,int type,byte[] kinds,int[] values,int i)
+    {
+        switch (type) {
+            case 0x00 : // Word constant
+                kinds[i] = ZInstruction.WORD_CONSTANT;
+                values[i] = memory.fetchWord(pc);
+                return pc + 2;
+            case 0x01 : // Byte constant
+                kinds[i] = ZInstruction.BYTE_CONSTANT;
+                values[i] = memory.fetchByte(pc);
+                return pc + 1;
+            default : // A variable
+                kinds[i] = ZInstruction.VARIABLE;
+                values[i] = memory.fetchByte(pc);
+                return pc + 1;
         }
+    }
 
-        // Otherwise, construct a signed branch value.
-        b2 = memory.fetchByte(curCallFrame.pc);
-        curCallFrame.pc++;
-        sval = (((((b1 & 0x3f) << 8) & 0x3f00) | b2) & 0x3fff);
-        // If the following makes no sense, see the Z-Machine spec
-        // on signed numbers.
-        if ((sval & 0x2000) == 0x2000)
-            curBranch = (sval - 16384);
+    // Returns true if the given instruction has a <result> argument.
+    private boolean hasResult(int type,int opcode)
+    {
+        if (type == OPTYPE_0OP)
+            return (((opcode == 0x05) || (opcode == 0x06)) && (version == 4)) ||
+                   ((opcode == 0x09) && (version >= 5));
+        else if (type == OPTYPE_1OP)
+            return ((opcode >= 0x01) && (opcode <= 0x04)) || (opcode == 0x08) ||
+                   (opcode == 0x0e) || ((opcode == 0x0f) && (version < 5));
+        else if (type == OPTYPE_2OP)
+            return (opcode == 0x08) || (opcode == 0x09) ||
+                   ((opcode >= 0x0f) && (opcode <= 0x19));
+        else if (type == OPTYPE_VAR)
+            return (opcode == 0x00) || (opcode == 0x07) || (opcode == 0x0c) ||
+                   ((opcode >= 0x16) && (opcode <= 0x18)) ||
+                   ((opcode == 0x04) && (version >= 5));
+        else
+            return ((opcode >= 0x00) && (opcode <= 0x04)) || (opcode == 0x09) ||
+                   (opcode == 0x0a) || (opcode == 0x13);
+    }
+
+    // Returns true if the given instruction has a <branch> argument.
+    boolean hasBranch(int type,int opcode)
+    {
+        if (type == OPTYPE_0OP)
+            return (((opcode == 0x05) || (opcode == 0x06)) && (version < 4)) ||
+                   (opcode == 0x0d) || (opcode == 0x0f);
+        else if (type == OPTYPE_1OP)
+            return (opcode <= 0x02);
+        else if (type == OPTYPE_2OP)
+            return ((opcode >= 0x01) && (opcode <= 0x07)) || (opcode == 0x0a);
+        else if (type == OPTYPE_VAR)
+            return (opcode == 0x17) || (opcode == 0x1f);
         else
-            curBranch = sval;
+            return (opcode == 0x06) || (opcode == 0x18) || (opcode == 0x1b);
     }
 
     // Do a branch, based on the values of curBranch and
@@ -995,44 +1058,113 @@ public class ZCPU extends Object implements Runnable {
             return;
     }
 
-    // This method gets the <result> argument of the current
-    // instruction and stores it in the global variable curResult.
-    // curCallFrame.pc should be pointing at the argument when
-    // this is called; it is adjusted accordingly.
-    private void getResult()
+    // This method decodes the <string> argument of the current
+    // instruction and stores it in the global variable curString.
+    private void getString()
     {
-        curResult = memory.fetchByte(curCallFrame.pc);
-        curCallFrame.pc++;
+        curString = decodeZString(curStringAddr);
     }
 
-    // This method gets the <string> argument of the current
-    // instruction, decodes it, and stores it in the global variable
-    // curString.  curCallFrame.pc should be pointing at the start
-    // of the string; it is adjusted accordingly.
-    private void getString()
+    // This function decodes the Z-String at the specified
+    // address, and returns it as a Java String object.  Strings are
+    // cached; while decoding, decodeText() notes the words it reads
+    // from dynamic memory, so that the cache can tell if the string
+    // has changed.
+    String decodeZString(int addr)
     {
-        int w;
+        String s;
 
-        // First, decode the string
-        curString = decodeZString(curCallFrame.pc);
+        if (memory.textModified)
+            expandAbbreviations();
+        s = stringCache.get(memory,addr);
+        if (s == null) {
+            numTextDepends = 0;
+            s = decodeText(addr);
+            stringCache.put(addr,s,textDepends,numTextDepends);
+        }
+        return s;
+    }
 
-        // Now, adjust the PC.
-        w = memory.fetchWord(curCallFrame.pc);
-        curCallFrame.pc += 2;
-        while ((w & 0x8000) == 0) {
-            w = memory.fetchWord(curCallFrame.pc);
-            curCallFrame.pc += 2;
+    // Decode each of the abbreviations once, so that decodeText()
+    // can just copy them.  memory watches the abbreviation table and
+    // strings for changes, and if there are any, the abbreviations are
+    // decoded again, and the string cache is cleared.
+    private void expandAbbreviations()
+    {
+        int n;
+        int[] addrs, ends;
+
+        abbreviations = null;
+        memory.clearText();
+        stringCache.clear();
+        if ((version == 1) || (abbrevTable == 0))
+            return;
+
+        // Find the abbreviations, and where each one ends.
+        if (version == 2)
+            n = 32;
+        else
+            n = 96;
+        addrs = new int[n];
+        ends = new int[n];
+        try {
+            for (int i=0;i<n;i++) {
+                addrs[i] = memory.fetchWord(abbrevTable + (i * 2)) * 2;
+                ends[i] = addrs[i];
+                while ((memory.fetchWord(ends[i]) & 0x8000) == 0)
+                    ends[i] += 2;
+                ends[i] += 2;
+            }
         }
+        catch (IndexOutOfBoundsException ex) {
+            return; // A bad table; decode abbreviations as they're used
+        }
+
+        // Decode them.  An abbreviation that uses another one (which
+        // it shouldn't) gets it decoded directly, if it hasn't been
+        // expanded yet.
+        abbreviations = new char[n][];
+        for (int i=0;i<n;i++)
+            abbreviations[i] = decodeText(addrs[i]).toCharArray();
+
+        // Watch the table and the abbreviations, where they are in
+        // dynamic memory, so that they are expanded again if changed.
+        memory.watchText(abbrevTable,n * 2);
+        for (int i=0;i<n;i++)
+            memory.watchText(addrs[i],ends[i] - addrs[i]);
     }
 
-    // This function decodes the Z-String at the specified
-    // address, and returns it as a Java String object.
-    private String decodeZString(int addr)
+    // Append abbreviation n to sb.
+    private void appendAbbreviation(StringBuffer sb,int n)
+    {
+        if ((abbreviations != null) && (abbreviations[n] != null))
+            sb.append(abbreviations[n]);
+        else
+            sb.append(decodeText(fetchTextWord(abbrevTable + (n * 2)) * 2));
+    }
+
+    // Return the word at addr, as part of some text being decoded,
+    // noting it if it's in dynamic memory.
+    private int fetchTextWord(int addr)
+    {
+        int w = memory.fetchWord(addr);
+
+        if (addr < dynamicMemorySize) {
+            if (numTextDepends * 2 == textDepends.length)
+                textDepends = Arrays.copyOf(textDepends,textDepends.length * 2);
+            textDepends[numTextDepends * 2] = addr;
+            textDepends[numTextDepends * 2 + 1] = w;
+            numTextDepends++;
+        }
+        return w;
+    }
+
+    // Decode the Z-String at the specified address; see decodeZString().
+    private String decodeText(int addr)
     {
         StringBuffer decodedstr = new StringBuffer();
         int w, tmpaddr;
         int currentAlphabet, lockAlphabet;
-        int abbrevAddr;
         char c, c2, c3;
 		int zlen, curindex;
 		int[] zchars;
@@ -1051,14 +1183,14 @@ public class ZCPU extends Object implements Runnable {
 		zchars = new int[zlen];
 		curindex = 0;
         tmpaddr = addr;
-        w = memory.fetchWord(tmpaddr);
+        w = fetchTextWord(tmpaddr);
         tmpaddr += 2;
         zchars[curindex] = ((w >> 10) & 0x1f);
         zchars[curindex+1] = ((w >> 5) & 0x1f);
         zchars[curindex+2] = (w & 0x1f);
 		curindex += 3;
         while ((w & 0x8000) == 0) {
-            w = memory.fetchWord(tmpaddr);
+            w = fetchTextWord(tmpaddr);
             tmpaddr += 2;
             zchars[curindex] = ((w >> 10) & 0x1f);
             zchars[curindex+1] = ((w >> 5) & 0x1f);
@@ -1087,9 +1219,7 @@ public class ZCPU extends Object implements Runnable {
 							if (i >= zlen) // This is all we're getting.
 								break;
                             c2 = (char)zchars[i];
-                            abbrevAddr = memory.fetchWord(abbrevTable + (((((int)c) - 1) * 32 + ((int)c2)) * 2));
-                            abbrevAddr *= 2; // Word address
-                            decodedstr.append(decodeZString(abbrevAddr));
+                            appendAbbreviation(decodedstr,(((int)c) - 1) * 32 + ((int)c2));
                          }
                          break;
                 case 2 : if (version <= 2) { // Shift up
@@ -1103,9 +1233,7 @@ public class ZCPU extends Object implements Runnable {
 							if (i >= zlen)
 								break;
                             c2 = (char)zchars[i];
-                            abbrevAddr = memory.fetchWord(abbrevTable + (((((int)c) - 1) * 32 + ((int)c2)) * 2));
-                            abbrevAddr *= 2; // Word address
-                            decodedstr.append(decodeZString(abbrevAddr));
+                            appendAbbreviation(decodedstr,(((int)c) - 1) * 32 + ((int)c2));
                          }
                          break;
                 case 3 : if (version <= 2) { // Shift down
@@ -1121,9 +1249,7 @@ public class ZCPU extends Object implements Runnable {
 							if (i >= zlen)
 								break;
                             c2 = (char)zchars[i];
-                            abbrevAddr = memory.fetchWord(abbrevTable + (((((int)c) - 1) * 32 + ((int)c2)) * 2));
-                            abbrevAddr *= 2; // Word address
-                            decodedstr.append(decodeZString(abbrevAddr));
+                            appendAbbreviation(decodedstr,(((int)c) - 1) * 32 + ((int)c2));
                          }
                          break;
                 case 4 : // Always a shift up
@@ -1173,96 +1299,98 @@ public class ZCPU extends Object implements Runnable {
         return decodedstr.toString();
     }
 
-	// Encode text into a Z-String, represented as a vector of Integers.
-	private Vector encodeZString(String text)
+	// Encode the len characters at addr in memory as Z-characters, and
+	// return the first nzchars of them packed five bits apiece into a
+	// long, padded with 5s.  The rest of the text isn't looked at.  With
+	// nzchars 6 (V1-3) or 9 (V4+), this is how a word is stored in the
+	// dictionary, less the end-of-string bit; see ZDictionary.
+	private long encodeZChars(int addr,int len,int nzchars)
 	{
-		Vector outbuf;
-		int curtextindex, textlen;
-		char curchar;
+		long packed;
+		int n; // Number of Z-characters packed so far
+		int seq, seqlen; // Z-characters for the current character
+		int shiftU, shiftP; // Shifts to alphabets U and P
+		int curchar;
 		int i;
-		boolean found;
 
-		outbuf = new Vector();
-		curtextindex = 0;
-		textlen = text.length();
+		if (version < 3) {
+			shiftU = 2;
+			shiftP = 3;
+		}
+		else {
+			shiftU = 4;
+			shiftP = 5;
+		}
 
-		// Go through the string, converting characters as we go.
-		for (curtextindex=0;curtextindex<textlen;curtextindex++) {
-			curchar = text.charAt(curtextindex);
+		// Go through the text, converting characters as we go.
+		packed = 0;
+		n = 0;
+		for (int j=0;(j<len) && (n<nzchars);j++) {
+			curchar = memory.fetchByte(addr + j);
+			seq = -1;
+			seqlen = 0;
 
 			// First, try some shortcuts if we're not using an alternate character set.
 			if (!altCharSet) {
-				if (Character.isLowerCase(curchar)) { // Alphabet L
-					outbuf.addElement(new Integer(((int)((curchar - 'a') + 6))));
-					continue;
+				if ((curchar >= 'a') && (curchar <= 'z')) { // Alphabet L
+					seq = (curchar - 'a') + 6;
+					seqlen = 1;
 				}
-				else if (Character.isUpperCase(curchar)) {
-					if (version < 3)
-						outbuf.addElement(new Integer(2));
-					else
-						outbuf.addElement(new Integer(4));
-					outbuf.addElement(new Integer(((int)((curchar - 'A') + 6))));
-					continue;
+				else if ((curchar >= 'A') && (curchar <= 'Z')) {
+					seq = (shiftU << 5) | ((curchar - 'A') + 6);
+					seqlen = 2;
 				}
 			}
 
 			// If the character is a cr or lf, encode it as a newline.
-			if ((curchar == '\r') || (curchar == '\n')) {
-				if (version == 1) { // Only needs one character in V1
-					outbuf.addElement(new Integer(1));
-					continue;
+			// Only one Z-character is needed in V1.
+			if ((seqlen == 0) && ((curchar == '\r') || (curchar == '\n'))) {
+				if (version == 1) {
+					seq = 1;
+					seqlen = 1;
+				}
+				else {
+					seq = (shiftP << 5) | 7;
+					seqlen = 2;
 				}
-
-				// Otherwise, two bytes are needed.
-				if (version < 3)
-					outbuf.addElement(new Integer(3));
-				else
-					outbuf.addElement(new Integer(5));
-				outbuf.addElement(new Integer(7));
-				continue;
 			}
 
 			// See if the character is in each alphabet.  This means either it's
 			// punctuation or we have an alternate character set.
-			found = false;
-			for (i=6;(i<32);i++) {
+			for (i=6;(i<32) && (seqlen == 0);i++) {
 				if (alphabet[alphabetL][i] == curchar) {
-					outbuf.addElement(new Integer(i));
-					found = true;
+					seq = i;
+					seqlen = 1;
 				}
 				else if (alphabet[alphabetU][i] == curchar) {
-					if (version < 3)
-						outbuf.addElement(new Integer(2));
-					else
-						outbuf.addElement(new Integer(4));
-					outbuf.addElement(new Integer(i));
-					found = true;
+					seq = (shiftU << 5) | i;
+					seqlen = 2;
 				}
 				else if (alphabet[alphabetP][i] == curchar) {
-					if (version < 3)
-						outbuf.addElement(new Integer(3));
-					else
-						outbuf.addElement(new Integer(5));
-					outbuf.addElement(new Integer(i));
-					found = true;
+					seq = (shiftP << 5) | i;
+					seqlen = 2;
 				}
 			}
 
-			// If the character was found, continue.  Otherwise, store it as a literal.
-			if (found)
-				continue;
+			// If the character wasn't found, store it as a literal:
+			// a shift to alphabet P, the escape, then the top and
+			// bottom 5 bits.
+			if (seqlen == 0) {
+				seq = (shiftP << 15) | (6 << 10) | (((curchar >> 5) & 0x1f) << 5) | (curchar & 0x1f);
+				seqlen = 4;
+			}
 
-			if (version < 3) // Shift to alphabetP
-				outbuf.addElement(new Integer(3));
-			else
-				outbuf.addElement(new Integer(5));
-			outbuf.addElement(new Integer(6)); // Literal escape
-			outbuf.addElement(new Integer(((((int)curchar) >> 5) & 0x1f))); // Top 5 bits
-			outbuf.addElement(new Integer(((int)curchar) & 0x1f)); // Bottom 5 bits
+			// Pack as many of these as there's room for.
+			for (i=seqlen-1;(i>=0) && (n<nzchars);i--) {
+				packed = (packed << 5) | ((seq >> (i * 5)) & 0x1f);
+				n++;
+			}
 		}
 
-		// Return the encoded string.
-		return outbuf;
+		// Pad with 5s.
+		for (;n<nzchars;n++)
+			packed = (packed << 5) | 5;
+		return packed;
 	}
 
     // This function handles requests to get the value of a
@@ -1272,12 +1400,10 @@ public class ZCPU extends Object implements Runnable {
     private int getVariable(int v)
     {
         if (v == 0) { // The top of the routine stack
-            if (curCallFrame.routineStack.empty())
+            if (sp <= curCallFrame.stackBase)
                 zui.fatal("Routine stack underflow");
-            else {
-                Integer i = (Integer)curCallFrame.routineStack.pop();
-                return (i.intValue());
-            }
+            else
+                return (valueStack[--sp]);
         }
         else if ((v >= 1) && (v <= 15)) // Local variable
             // We don't bother checking whether the variable
@@ -1298,8 +1424,9 @@ public class ZCPU extends Object implements Runnable {
     {
         value = value & 0xffff;
         if (v == 0) { // Push this value onto the routine stack
-            Integer i = new Integer(value);
-            curCallFrame.routineStack.push(i);
+            if (sp == valueStack.length)
+                valueStack = Arrays.copyOf(valueStack,valueStack.length * 2);
+            valueStack[sp++] = value;
         }
         else if ((v >= 1) && (v <= 15)) // Local variable
             // Again, we don't bother checking the validity of
@@ -1313,7 +1440,7 @@ public class ZCPU extends Object implements Runnable {
 
     // Unpack a packed address.  raddr is true if this is a routine
     // address.
-    private int unpackAddr(int paddr,boolean raddr)
+    int unpackAddr(int paddr,boolean raddr)
     {
         int addr = 0;
         int offset = 0;
@@ -1341,7 +1468,7 @@ public class ZCPU extends Object implements Runnable {
     }
 
     // Return a signed version of a word
-    private int signedWord(int w)
+    int signedWord(int w)
     {
         if ((w & 0x8000) == 0x8000)
             return (w - 65536);
@@ -1360,26 +1487,112 @@ public class ZCPU extends Object implements Runnable {
     }
 
     // Call the routine at the given routine address as an interrupt.
-    // Return the return value of the routine.
-    private int interrupt(int raddr)
+    // This just pushes a frame for the routine; the main loop goes on
+    // to execute it, and when it returns, its return value is passed
+    // to continuation, which carries on with the interrupted instruction.
+    private void interrupt(int raddr,IntConsumer continuation)
     {
         int addr;
+        int numvars;
+        int newFrameNumber;
+
+        // Get number of local variables
+        addr = unpackAddr(raddr,true);
+        numvars = memory.fetchByte(addr);
+
+        // Count the entry, so that a routine also reached by CALL gets
+        // compiled in good time.  The interrupt itself is always
+        // interpreted, since its continuation must run from the main
+        // loop.
+        if (runtime != null)
+            runtime.lookup(addr);
+        addr++;
+
+        // Get a number for the new frame
+        newFrameNumber = curCallFrame.frameNumber + 1;
+
+        // Push a new call frame
+        pushFrame();
+
+        // Set pc to the beginning of the routine's code
+        if (version < 5)
+            curCallFrame.pc = addr + (numvars * 2);
+        else
+            curCallFrame.pc = addr;
+
+        // The new routine's stack starts above the caller's
+        curCallFrame.stackBase = sp;
+
+        // Initialize local variables
+        curCallFrame.numLocalVars = numvars;
+        if (version < 5) {
+            for (int i=0;i<numvars;i++)
+                curCallFrame.localVars[i] = memory.fetchWord(addr + (i*2));
+        }
+
+        // Mark the frame as an interrupt, and remember what to do when
+        // it returns.
+        curCallFrame.callType = ZCallFrame.CONTINUATION;
+        curCallFrame.continuation = continuation;
+        curCallFrame.argCount = 0;
+        curCallFrame.frameNumber = newFrameNumber;
+    }
+
+    // Return true if the call frames can be saved by SAVE or
+    // SAVE_UNDO.  They can't while a routine called from compiled code
+    // (an INTERRUPT frame) is running: the compiled caller is waiting
+    // for it on the Java stack, which a saved game can't hold.  Nor
+    // can they during a timed-input interrupt (a CONTINUATION frame),
+    // whose continuation, which finishes the READ or READ_CHAR, can't
+    // be saved either.
+    private boolean canSaveFrames()
+    {
+        for (int j=1;j<=frameDepth;j++)
+            if ((frames[j].callType == ZCallFrame.INTERRUPT) || (frames[j].callType == ZCallFrame.CONTINUATION))
+                return false;
+        return true;
+    }
+
+    // Return true if a routine called from compiled code (an INTERRUPT
+    // frame) lies above the given depth in the call stack.  THROW,
+    // RESTART, RESTORE and RESTORE_UNDO can't take such a frame away,
+    // since the compiled caller is still waiting for it on the Java
+    // stack, so they stop the machine instead.
+    private boolean interruptAbove(int depth)
+    {
+        for (int j=depth+1;j<=frameDepth;j++)
+            if (frames[j].callType == ZCallFrame.INTERRUPT)
+                return true;
+        return false;
+    }
+
+    // Call the routine at the given address with the given arguments,
+    // interpreting it in a nested decodeLoop, and return its return
+    // value.  This is used by compiled code, which can't be suspended
+    // while the routine runs.
+    int callInterpreted(int addr,int[] args)
+    {
         int newFrameAddr;
         int numvars;
+        int savedResult, savedNumvops;
+        int[] savedVops;
         
-        // Unpack the routine address and get number of local variables
-        addr = unpackAddr(raddr,true);
+        // The instruction that made the call carries on once the
+        // routine returns, so keep its arguments safe from the
+        // instructions the routine executes.
+        savedResult = curResult;
+        savedNumvops = numvops;
+        savedVops = (int[])vops.clone();
+
+        // Get number of local variables
         numvars = memory.fetchByte(addr);
         addr++;
         
         // Get a number for the new frame
         newFrameAddr = curCallFrame.frameNumber + 1;
         
-        // Push the current call frame onto the stack
-        callStack.push(curCallFrame);
-        
-        // Initialize a new call frame
-        curCallFrame = new ZCallFrame();
+        // Push a new call frame
+        pushFrame();
         
         // Set pc to the beginning of the routine's code
         if (version < 5)
@@ -1387,12 +1600,15 @@ public class ZCPU extends Object implements Runnable {
         else
             curCallFrame.pc = addr;
         
-        // Get a new routine stack
-        curCallFrame.routineStack = new Stack();
+        // The new routine's stack starts above the caller's
+        curCallFrame.stackBase = sp;
         
         // Initialize local variables
+        curCallFrame.numLocalVars = numvars;
         for (int i=0;i<numvars;i++) {
-            if (version < 5)
+            if (i < args.length)
+                curCallFrame.localVars[i] = args[i];
+            else if (version < 5)
                 curCallFrame.localVars[i] = memory.fetchWord(addr + (i*2));
             else
                 curCallFrame.localVars[i] = 0;
@@ -1401,8 +1617,8 @@ public class ZCPU extends Object implements Runnable {
         // Indicate that this routine was called as an interrupt
         curCallFrame.callType = ZCallFrame.INTERRUPT;
         
-        // No arguments
-        curCallFrame.argCount = 0;
+        // Store the number of arguments
+        curCallFrame.argCount = Math.min(args.length,numvars);
         
         // Store frame number
         curCallFrame.frameNumber = newFrameAddr;
@@ -1410,62 +1626,130 @@ public class ZCPU extends Object implements Runnable {
         // Now call decodeLoop recursively.
         decodeLoop();
         
+        // Restore the calling instruction's arguments
+        curResult = savedResult;
+        numvops = savedNumvops;
+        System.arraycopy(savedVops,0,vops,0,vops.length);
+
         // When we're done, ret_value will contain the routine's return value.
         return ret_value;
     }
+
+    // Push a new call frame and make it the current frame.  Frame
+    // records are kept from one call to the next, so this doesn't
+    // allocate anything once the stack has been this deep before.
+    // The new frame's local variables and continuation are cleared;
+    // everything else is up to the caller.
+    private void pushFrame()
+    {
+        frameDepth++;
+        if (frameDepth == frames.length)
+            frames = Arrays.copyOf(frames,frames.length * 2);
+        if (frames[frameDepth] == null)
+            frames[frameDepth] = new ZCallFrame();
+        curCallFrame = frames[frameDepth];
+        Arrays.fill(curCallFrame.localVars,0);
+        curCallFrame.continuation = null;
+    }
+
+    // Return to the previous call frame.
+    private void popFrame()
+    {
+        frameDepth--;
+        curCallFrame = frames[frameDepth];
+    }
+
+    // Collect the arguments of the current CALL instruction for a
+    // compiled routine with numvars local variables.
+    private int[] getArguments(int numvars)
+    {
+        int[] args = new int[Math.min(numvops - 1,numvars)];
+
+        System.arraycopy(vops,1,args,0,args.length);
+        return args;
+    }
+
+    // Print a newline, as NEW_LINE.
+    void printNewLine()
+    {
+        did_newline = true;
+		ioCard.printString("\n");
+    }
     
-	// Save the state of the Z-Machine--that is, the current call frame
-	// and the call frame stack.
-	private void dumpState(DataOutputStream dos) throws IOException
+	// Pack the state of the Z-Machine--that is, its call frames, each
+	// with its live local variables and routine stack--for SAVE_UNDO.
+	private byte[] packState()
 	{
-		int i;
-		Stack tmpstack;
-		int n = 0;
 		ZCallFrame thisframe;
-
-		// First, save the current call frame.
-		dos.writeInt(curCallFrame.pc);
-		for (i=0;i<15;i++)
-			dos.writeInt(curCallFrame.localVars[i]);
-		dos.writeInt(curCallFrame.numLocalVars);
-		dos.writeInt(curCallFrame.callType);
-		dos.writeInt(curCallFrame.argCount);
-		dos.writeInt(curCallFrame.frameNumber);
-		dumpStack(dos,curCallFrame.routineStack);
-
-		// Now, to save things in the proper order, we deconstruct the original
-		// call stack and put in in a new stack, in reverse order.  It is
-		// reconstructed as it is written out.
-		tmpstack = new Stack();
-		while (!callStack.empty()) {
-			tmpstack.push(callStack.pop());
-			n++;
+		int top;
+
+		stateBuffer.clear();
+		stateBuffer.putNumber(frameDepth);
+		for (int j=0;j<=frameDepth;j++) {
+			thisframe = frames[j];
+			if (j < frameDepth)
+				top = frames[j + 1].stackBase;
+			else
+				top = sp;
+			stateBuffer.putNumber(thisframe.pc);
+			stateBuffer.putNumber(thisframe.callType);
+			stateBuffer.putNumber(thisframe.argCount);
+			stateBuffer.putNumber(thisframe.frameNumber);
+			stateBuffer.putNumber(thisframe.numLocalVars);
+			stateBuffer.putNumber(top - thisframe.stackBase);
+			for (int i=0;i<thisframe.numLocalVars;i++)
+				stateBuffer.putWord(thisframe.localVars[i]);
+			for (int i=thisframe.stackBase;i<top;i++)
+				stateBuffer.putWord(valueStack[i]);
 		}
+		return stateBuffer.toByteArray();
+	}
 
-		// Write the number of stack entries, then each entry.
-		dos.writeInt(n);
-		while (!tmpstack.empty()) {
-			thisframe = (ZCallFrame)tmpstack.pop();
-			dos.writeInt(thisframe.pc);
-			for (i=0;i<15;i++)
-				dos.writeInt(thisframe.localVars[i]);
-			dos.writeInt(thisframe.numLocalVars);
-			dos.writeInt(thisframe.callType);
-			dos.writeInt(thisframe.argCount);
-			dos.writeInt(thisframe.frameNumber);
-			dumpStack(dos,thisframe.routineStack);
-			callStack.push(thisframe);
+	// Restore a state packed by packState().
+	private void unpackState(byte[] state)
+	{
+		ZStateBuffer sb = new ZStateBuffer(state);
+		ZCallFrame thisframe;
+		int nframes;
+		int nelements;
+
+		nframes = sb.getNumber() + 1;
+		if (nframes > frames.length)
+			frames = Arrays.copyOf(frames,nframes + 64);
+		sp = 0;
+		for (int j=0;j<nframes;j++) {
+			if (frames[j] == null)
+				frames[j] = new ZCallFrame();
+			thisframe = frames[j];
+			thisframe.pc = sb.getNumber();
+			thisframe.callType = sb.getNumber();
+			thisframe.argCount = sb.getNumber();
+			thisframe.frameNumber = sb.getNumber();
+			thisframe.numLocalVars = sb.getNumber();
+			thisframe.continuation = null;
+			thisframe.stackBase = sp;
+			nelements = sb.getNumber();
+			Arrays.fill(thisframe.localVars,0);
+			for (int i=0;i<thisframe.numLocalVars;i++)
+				thisframe.localVars[i] = sb.getWord();
+			for (int i=0;i<nelements;i++)
+				putVariable(0,sb.getWord());
 		}
+		frameDepth = nframes - 1;
+		curCallFrame = frames[frameDepth];
 	}
 
-	// Read a game state from a file, as saved by dumpState().
+	// Read a game state from a saved game in the format Zax used
+	// before Quetzal.
 	private void readState(DataInputStream dis) throws IOException
 	{
 		int i, j;
 		int nframes;
 		ZCallFrame thisframe;
+		int[] curStack;
 
-		// Get the current call frame
+		// Get the current call frame.  Its routine stack goes on top
+		// of the others, so hold on to it for now.
 		curCallFrame = new ZCallFrame();
 		curCallFrame.pc = dis.readInt();
 		for (i=0;i<15;i++)
@@ -1474,14 +1758,19 @@ public class ZCPU extends Object implements Runnable {
 		curCallFrame.callType = dis.readInt();
 		curCallFrame.argCount = dis.readInt();
 		curCallFrame.frameNumber = dis.readInt();
-		curCallFrame.routineStack = new Stack();
-		readStack(dis,curCallFrame.routineStack);
+		curStack = new int[dis.readInt()];
+		for (i=0;i<curStack.length;i++)
+			curStack[i] = dis.readInt();
 
 		// Now get the call stack
-		callStack = new Stack();
+		sp = 0;
 		nframes = dis.readInt();
+		if (nframes >= frames.length)
+			frames = Arrays.copyOf(frames,nframes + 64);
 		for (j=0;j<nframes;j++) {
-			thisframe = new ZCallFrame();
+			if (frames[j] == null)
+				frames[j] = new ZCallFrame();
+			thisframe = frames[j];
 			thisframe.pc = dis.readInt();
 			for (i=0;i<15;i++)
 				thisframe.localVars[i] = dis.readInt();
@@ -1489,52 +1778,291 @@ public class ZCPU extends Object implements Runnable {
 			thisframe.callType = dis.readInt();
 			thisframe.argCount = dis.readInt();
 			thisframe.frameNumber = dis.readInt();
-			thisframe.routineStack = new Stack();
-			readStack(dis,thisframe.routineStack);
-			callStack.push(thisframe);
-		}
-	}
-
-	// Called by dumpState--dumps the contents of a stack of Integers.
-	private void dumpStack(DataOutputStream dos,Stack st) throws IOException
-	{
-		Stack tmpstack;
-		int n = 0;
-		Integer i;
-
-		// We put the contents of the stack in another stack to reverse
-		// their order before writing them.
-		tmpstack = new Stack();
-		while (!st.empty()) {
-			tmpstack.push(st.pop());
-			n++;
+			thisframe.stackBase = sp;
+			readStack(dis);
 		}
 
-		// Then we write the contents to a file, starting with the number of
-		// elements on the stack.
-		dos.writeInt(n);
-		while (!tmpstack.empty()) {
-			i = (Integer)tmpstack.pop();
-			dos.writeInt(i.intValue());
-			st.push(i);
-		}
+		// Finally, the current frame's routine stack.  The current
+		// frame goes on top of the others.
+		frameDepth = nframes;
+		frames[frameDepth] = curCallFrame;
+		curCallFrame.stackBase = sp;
+		for (i=0;i<curStack.length;i++)
+			putVariable(0,curStack[i]);
 	}
 
-	// Called by readState--reads a stack saved by dumpStack().
-	private void readStack(DataInputStream dis,Stack st) throws IOException
+	// Called by readState--reads a saved stack and pushes its elements
+	// onto the value stack.
+	private void readStack(DataInputStream dis) throws IOException
 	{
 		int nelements;
-		Integer tmp;
 		int i;
 
 		// Get the number of elements
 		nelements = dis.readInt();
 
 		// Get the elements
-		for (i=0;i<nelements;i++) {
-			tmp = new Integer(dis.readInt());
-			st.push(tmp);
+		for (i=0;i<nelements;i++)
+			putVariable(0,dis.readInt());
+	}
+
+	// Save the game in Quetzal format: the IFhd chunk, dynamic memory
+	// as a CMem chunk, and the call stack as a Stks chunk.  pc is the
+	// address of the SAVE instruction's branch (V1-3) or result (V4+).
+	//
+	// Frames run from the first (a dummy frame holding the main
+	// routine's stack) to the current one.  A Quetzal frame records
+	// where its caller carries on once it returns, which is just
+	// past the CALL's <result> byte, if it has one.
+	private void writeQuetzal(DataOutputStream dos,int pc) throws IOException
+	{
+		ByteArrayOutputStream chunk;
+		DataOutputStream cdos;
+		ByteArrayOutputStream form;
+		DataOutputStream fdos;
+		ZCallFrame thisframe, caller;
+		int top;
+
+		form = new ByteArrayOutputStream(4096);
+		fdos = new DataOutputStream(form);
+		fdos.writeBytes("IFZS");
+
+		// The header identifies the story-file, and holds the pc.
+		chunk = new ByteArrayOutputStream(16);
+		cdos = new DataOutputStream(chunk);
+		cdos.writeShort(memory.fetchWord(0x02));
+		for (int i=0x12;i<0x18;i++)
+			cdos.writeByte(memory.fetchByte(i));
+		cdos.writeShort(memory.fetchWord(0x1c));
+		cdos.writeByte(pc >> 16);
+		cdos.writeShort(pc);
+		writeChunk(fdos,"IFhd",chunk.toByteArray());
+
+		// Dynamic memory
+		writeChunk(fdos,"CMem",memory.compress());
+
+		// The call stack
+		chunk = new ByteArrayOutputStream(1024);
+		cdos = new DataOutputStream(chunk);
+		for (int j=0;j<=frameDepth;j++) {
+			thisframe = frames[j];
+			if (j < frameDepth)
+				top = frames[j + 1].stackBase;
+			else
+				top = sp;
+			if (j == 0) { // The dummy frame
+				cdos.writeByte(0);
+				cdos.writeShort(0);
+				cdos.writeByte(0);
+				cdos.writeByte(0);
+				cdos.writeByte(0);
+			}
+			else {
+				caller = frames[j - 1];
+				if (thisframe.callType == ZCallFrame.FUNCTION) {
+					cdos.writeByte((caller.pc + 1) >> 16);
+					cdos.writeShort(caller.pc + 1);
+					cdos.writeByte(thisframe.numLocalVars);
+					cdos.writeByte(memory.fetchByte(caller.pc));
+				}
+				else { // A procedure, or an interrupt, which can't be resumed as one
+					cdos.writeByte(caller.pc >> 16);
+					cdos.writeShort(caller.pc);
+					cdos.writeByte(0x10 | thisframe.numLocalVars);
+					cdos.writeByte(0);
+				}
+				cdos.writeByte((1 << thisframe.argCount) - 1);
+			}
+			cdos.writeShort(top - thisframe.stackBase);
+			for (int i=0;i<thisframe.numLocalVars;i++)
+				cdos.writeShort(thisframe.localVars[i]);
+			for (int i=thisframe.stackBase;i<top;i++)
+				cdos.writeShort(valueStack[i]);
+		}
+		writeChunk(fdos,"Stks",chunk.toByteArray());
+
+		// Wrap it all up in a FORM.
+		dos.writeBytes("FORM");
+		dos.writeInt(form.size());
+		form.writeTo(dos);
+	}
+
+	// Write an IFF chunk, padded to an even length.
+	private void writeChunk(DataOutputStream dos,String id,byte[] data) throws IOException
+	{
+		dos.writeBytes(id);
+		dos.writeInt(data.length);
+		dos.write(data);
+		if ((data.length & 1) == 1)
+			dos.writeByte(0);
+	}
+
+	// Restore a game saved in Quetzal format by writeQuetzal().  Return
+	// the address of the SAVE instruction's branch or result, or -1 if
+	// the file is not a saved game of this story-file, in which case
+	// nothing has been changed.
+	private int readQuetzal(ByteBuffer buf)
+	{
+		int formEnd;
+		int id, len;
+		int hd = -1, mem = -1, stks = -1;
+		int memLen = 0, stksLen = 0;
+		boolean compressed = false;
+		byte[] newMemory;
+		int pc;
+		int nframes;
+		int flags, args, nlocals, nstack;
+		ZCallFrame thisframe;
+
+		try {
+			// Find the chunks we need.
+			if ((buf.getInt() != 0x464f524d) || (buf.remaining() < 8)) // "FORM"
+				return -1;
+			formEnd = Math.min(buf.getInt() + 8,buf.limit());
+			if (buf.getInt() != 0x49465a53) // "IFZS"
+				return -1;
+			while (buf.position() + 8 <= formEnd) {
+				id = buf.getInt();
+				len = buf.getInt();
+				if ((len < 0) || (buf.position() + len > formEnd))
+					return -1;
+				switch (id) {
+					case 0x49466864 : // "IFhd"
+						hd = buf.position();
+						break;
+					case 0x434d656d : // "CMem"
+					case 0x554d656d : // "UMem"
+						if (mem == -1) {
+							mem = buf.position();
+							memLen = len;
+							compressed = (id == 0x434d656d);
+						}
+						break;
+					case 0x53746b73 : // "Stks"
+						stks = buf.position();
+						stksLen = len;
+						break;
+				}
+				buf.position(buf.position() + len + (len & 1));
+			}
+			if ((hd == -1) || (mem == -1) || (stks == -1))
+				return -1;
+
+			// Check that it was saved by this story-file.
+			buf.position(hd);
+			if ((buf.getShort() & 0xffff) != memory.fetchWord(0x02))
+				return -1;
+			for (int i=0x12;i<0x18;i++)
+				if ((buf.get() & 0xff) != memory.fetchByte(i))
+					return -1;
+			if ((buf.getShort() & 0xffff) != memory.fetchWord(0x1c))
+				return -1;
+			pc = ((buf.get() & 0xff) << 16) | (buf.getShort() & 0xffff);
+
+			// Get dynamic memory.
+			if (compressed)
+				newMemory = memory.decompress(buf.array(),mem,memLen);
+			else if (memLen == dynamicMemorySize)
+				newMemory = Arrays.copyOfRange(buf.array(),mem,mem + memLen);
+			else
+				newMemory = null;
+			if (newMemory == null)
+				return -1;
+
+			// Check the call stack before changing anything.
+			buf.position(stks);
+			nframes = 0;
+			while (buf.position() < stks + stksLen) {
+				buf.position(buf.position() + 3);
+				nlocals = buf.get() & 0x0f;
+				buf.position(buf.position() + 2);
+				nstack = buf.getShort() & 0xffff;
+				buf.position(buf.position() + (2 * (nlocals + nstack)));
+				nframes++;
+			}
+			if ((nframes == 0) || (buf.position() != stks + stksLen))
+				return -1;
 		}
+		catch (RuntimeException ex) { // Ran off the end of the buffer
+			return -1;
+		}
+
+		// Now restore it all.
+		memory.load(newMemory);
+		buf.position(stks);
+		sp = 0;
+		if (nframes >= frames.length)
+			frames = Arrays.copyOf(frames,nframes + 64);
+		for (int j=0;j<nframes;j++) {
+			if (frames[j] == null)
+				frames[j] = new ZCallFrame();
+			thisframe = frames[j];
+			pc = ((buf.get() & 0xff) << 16) | (buf.getShort() & 0xffff);
+			flags = buf.get() & 0xff;
+			buf.get(); // The result variable is at the caller's pc
+			args = buf.get() & 0xff;
+			nstack = buf.getShort() & 0xffff;
+			if (j > 0) {
+				if ((flags & 0x10) == 0x10) {
+					frames[j - 1].pc = pc;
+					thisframe.callType = ZCallFrame.PROCEDURE;
+				}
+				else {
+					frames[j - 1].pc = pc - 1;
+					thisframe.callType = ZCallFrame.FUNCTION;
+				}
+			}
+			else
+				thisframe.callType = ZCallFrame.INTERRUPT; // This should never be examined.
+			thisframe.numLocalVars = flags & 0x0f;
+			thisframe.argCount = Integer.numberOfTrailingZeros(~args);
+			thisframe.frameNumber = j;
+			thisframe.continuation = null;
+			Arrays.fill(thisframe.localVars,0);
+			for (int i=0;i<thisframe.numLocalVars;i++)
+				thisframe.localVars[i] = buf.getShort() & 0xffff;
+			thisframe.stackBase = sp;
+			for (int i=0;i<nstack;i++)
+				putVariable(0,buf.getShort() & 0xffff);
+		}
+		frameDepth = nframes - 1;
+		curCallFrame = frames[frameDepth];
+
+		// The pc from the header
+		buf.position(hd + 10);
+		return ((buf.get() & 0xff) << 16) | (buf.getShort() & 0xffff);
+	}
+
+	// Carry on after a successful RESTORE, from the SAVE instruction
+	// whose branch (V1-3) or result (V4+) is at addr.  In V1-3 the
+	// SAVE branches as though it had succeeded; in V4+ it stores 2.
+	private void finishRestore(int addr)
+	{
+		int b1, b2, sval;
+
+		if (version >= 4) {
+			curCallFrame.pc = addr + 1;
+			curResult = memory.fetchByte(addr);
+			putVariable(curResult,2);
+			return;
+		}
+
+		b1 = memory.fetchByte(addr);
+		curBranchReversed = ((b1 & 0x80) != 0x80);
+		if ((b1 & 0x40) == 0x40) { // A one-byte branch
+			curBranch = (b1 & 0x3f);
+			curCallFrame.pc = addr + 1;
+		}
+		else {
+			b2 = memory.fetchByte(addr + 1);
+			sval = ((b1 & 0x3f) << 8) | b2;
+			if ((sval & 0x2000) == 0x2000)
+				curBranch = (sval - 16384);
+			else
+				curBranch = sval;
+			curCallFrame.pc = addr + 2;
+		}
+		doBranch();
 	}
 
     ///////////////////////////////////////////////////////////////////
@@ -1597,11 +2125,14 @@ public class ZCPU extends Object implements Runnable {
     private void zop_save()
     {
 		String fn;
-		FileOutputStream fos;
+		ByteArrayOutputStream bos;
 		DataOutputStream dos;
+		int pc;
 
 		// Get a filename to save under
-		fn = zui.getFilename("Save Game",null,true);
+		fn = null;
+		if (canSaveFrames())
+			fn = zui.getFilename("Save Game",null,true);
 		if (fn == null) { // An error-probably user cancelled.
 			if (version <= 3)
 				dontBranch();
@@ -1610,12 +2141,17 @@ public class ZCPU extends Object implements Runnable {
 			return;
 		}
 
+		// The saved pc is the address of the branch (in V1-3, straight
+		// after the opcode) or of the result (the last byte).
+		if (version <= 3)
+			pc = curInstructionAddr + 1;
+		else
+			pc = curCallFrame.pc - 1;
+
 		try {
-			fos = new FileOutputStream(fn);
-			dos = new DataOutputStream(fos);
-			dumpState(dos);
-			memory.dumpMemory(dos,0,dynamicMemorySize);
-			fos.close();
+			bos = new ByteArrayOutputStream(8192);
+			dos = new DataOutputStream(bos);
+			writeQuetzal(dos,pc);
 		}
 		catch (IOException ex1) {
 			if (version <= 3)
@@ -1624,6 +2160,13 @@ public class ZCPU extends Object implements Runnable {
 				putVariable(curResult,0);
 			return;
 		}
+		if (!saveFile(fn,bos.toByteArray())) {
+			if (version <= 3)
+				dontBranch();
+			else
+				putVariable(curResult,0);
+			return;
+		}
 
 		// We did it!
 		if (version <= 3)
@@ -1637,9 +2180,16 @@ public class ZCPU extends Object implements Runnable {
     private void zop_restore()
     {
 		String fn;
-		FileInputStream fis;
+		FileChannel fc;
+		ByteBuffer buf;
 		DataInputStream dis;
 		int tsBit;
+		int addr;
+
+		if (interruptAbove(0)) {
+			zui.fatal("RESTORE: Can't restore inside a routine called from compiled code");
+			return;
+		}
 
 		// Get a filename to restore from
 		fn = zui.getFilename("Restore Game",null,false);
@@ -1653,13 +2203,35 @@ public class ZCPU extends Object implements Runnable {
 		tsBit = memory.fetchWord(0x10) & 0x0001;
 
 		try {
-			fis = new FileInputStream(fn);
-			dis = new DataInputStream(fis);
-			readState(dis);
-			memory.readMemory(dis,0,dynamicMemorySize);
-			fis.close();
+			waitForSaves();
+			fc = FileChannel.open(Paths.get(fn),StandardOpenOption.READ);
+			try {
+				buf = ByteBuffer.allocate((int)fc.size());
+				while (buf.hasRemaining())
+					if (fc.read(buf) < 0)
+						throw new EOFException();
+			}
+			finally {
+				fc.close();
+			}
+			buf.flip();
+
+			// Quetzal files start with "FORM"; anything else is in the
+			// format Zax used before, the state of the call frames
+			// followed by dynamic memory.
+			if ((buf.limit() >= 4) && (buf.getInt(0) == 0x464f524d))
+				addr = readQuetzal(buf);
+			else {
+				dis = new DataInputStream(new ByteArrayInputStream(buf.array(),0,buf.limit()));
+				readState(dis);
+				memory.readMemory(dis,0,dynamicMemorySize);
+				addr = legacySaveAddr(curCallFrame.pc);
+			}
 		}
 		catch (IOException ex1) {
+			addr = -1;
+		}
+		if (addr == -1) {
 			if (version >= 4)
 				putVariable(curResult,0);
 			return;
@@ -1667,15 +2239,110 @@ public class ZCPU extends Object implements Runnable {
 
 		// We did it!
 		memory.putWord(0x10,memory.fetchWord(0x10) | tsBit);
-		if (version >= 3) {
-			curResult = memory.fetchByte(curCallFrame.pc - 1);
-			putVariable(curResult,2); // Is this correct?
-		}
+		finishRestore(addr);
     }
 
+	// Write a saved game or auxiliary file.  If there is a save
+	// executor, the file is written in the background and this returns
+	// true straight away; zui.saveFailed() hears about any failure.
+	// Otherwise, return whether the file was written.
+	private boolean saveFile(final String fn,final byte[] data)
+	{
+		FutureTask<Void> task;
+
+		if (saveExecutor != null) {
+			// Forget about writes that have finished.
+			while ((!pendingSaves.isEmpty()) && pendingSaves.firstElement().isDone())
+				pendingSaves.removeElementAt(0);
+
+			task = new FutureTask<Void>(() -> {
+				try {
+					writeFile(fn,data,true);
+				}
+				catch (IOException ex) {
+					zui.saveFailed(fn,ex.toString());
+				}
+			},null);
+			try {
+				saveExecutor.execute(task);
+				pendingSaves.addElement(task);
+				return true;
+			}
+			catch (RejectedExecutionException ex) {
+				// Fall through and write it now.
+			}
+		}
+
+		try {
+			writeFile(fn,data,false);
+		}
+		catch (IOException ex) {
+			return false;
+		}
+		return true;
+	}
+
+	// Write data to the named file, replacing whatever was there.  If
+	// durable is true, don't return until it has reached the disk.
+	private static void writeFile(String fn,byte[] data,boolean durable) throws IOException
+	{
+		FileChannel fc;
+		ByteBuffer buf;
+
+		fc = FileChannel.open(Paths.get(fn),StandardOpenOption.WRITE,
+							  StandardOpenOption.CREATE,StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			buf = ByteBuffer.wrap(data);
+			while (buf.hasRemaining())
+				fc.write(buf);
+			if (durable)
+				fc.force(true);
+		}
+		finally {
+			fc.close();
+		}
+	}
+
+	// Wait for any background saves to finish, so that a file can be
+	// read back.
+	private void waitForSaves()
+	{
+		while (!pendingSaves.isEmpty()) {
+			try {
+				pendingSaves.firstElement().get();
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (ExecutionException ex) {
+				// Already reported
+			}
+			pendingSaves.removeElementAt(0);
+		}
+	}
+
+	// Old-style saved games record the pc after the SAVE instruction.
+	// Return the address of its branch (V1-3) or result (V4+).  In
+	// V1-3 the branch may be one or two bytes long, and follows the
+	// one-byte SAVE opcode.
+	private int legacySaveAddr(int pc)
+	{
+		if (version >= 4)
+			return (pc - 1);
+		if ((memory.fetchByte(pc - 2) == 0xb5) && ((memory.fetchByte(pc - 1) & 0x40) == 0x40))
+			return (pc - 1);
+		return (pc - 2);
+	}
+
     // RESTART
     private void zop_restart()
     {
+		if (interruptAbove(0)) {
+			zui.fatal("RESTART: Can't restart inside a routine called from compiled code");
+			return;
+		}
+
 		// This will cause the decoder to exit and the ZMachine to restart
 		zui.restart();
         restartFlag = true;
@@ -1704,14 +2371,14 @@ public class ZCPU extends Object implements Runnable {
     // QUIT
     private void zop_quit()
     {
+        ioCard.outputFlush();
         zui.quit();
     }
 
     // NEW_LINE
     private void zop_new_line()
     {
-        did_newline = true;
-		ioCard.printString("\n");
+        printNewLine();
     }
 
     // SHOW_STATUS      V3
@@ -1882,27 +2549,38 @@ public class ZCPU extends Object implements Runnable {
     private void zop_ret()
     {
         // First, make sure we *can* return.
-        if (callStack.empty())
+        if (frameDepth == 0)
             zui.fatal("Call stack underflow");
 
+        // Throw away the routine's stack
+        sp = curCallFrame.stackBase;
+
         // Now do the appropriate thing for each call type.
         if (curCallFrame.callType == ZCallFrame.PROCEDURE) {
-            curCallFrame = (ZCallFrame)callStack.pop();
+            popFrame();
             return;
         }
         else if (curCallFrame.callType == ZCallFrame.FUNCTION) {
-            curCallFrame = (ZCallFrame)callStack.pop();
+            popFrame();
             curResult = memory.fetchByte(curCallFrame.pc);
             curCallFrame.pc++;
             putVariable(curResult,op1);
             return;
         }
         else if (curCallFrame.callType == ZCallFrame.INTERRUPT) {
-            curCallFrame = (ZCallFrame)callStack.pop();
+            popFrame();
             decode_ret_flag = true;
             ret_value = op1;
             return;
         }
+        else if (curCallFrame.callType == ZCallFrame.CONTINUATION) {
+            IntConsumer continuation = curCallFrame.continuation;
+
+            popFrame();
+            if (continuation != null) // Never null, as these frames aren't saved
+                continuation.accept(op1);
+            return;
+        }
 
         // If we make it here, something is wrong.
         zui.fatal("Corrupted call frame");
@@ -2246,12 +2924,25 @@ public class ZCPU extends Object implements Runnable {
     // THROW a fp       V5+
     private void zop_throw()
     {
-		// Pop the stack until we either find the frame being referenced, or the
-		// stack underflows (a fatal error).
-		while ((curCallFrame.frameNumber != op2) && (!callStack.empty()))
-			curCallFrame = (ZCallFrame)callStack.pop();
-		if (curCallFrame.frameNumber != op2) // Stack underflow
+		int j;
+
+		// Find the frame being referenced; if there is none, the stack
+		// underflows (a fatal error).
+		j = frameDepth;
+		while ((j > 0) && (frames[j].frameNumber != op2))
+			j--;
+		if (frames[j].frameNumber != op2) { // Stack underflow
 			zui.fatal("THROW: Call stack underflow");
+			return;
+		}
+		if (interruptAbove(j)) {
+			zui.fatal("THROW: Can't throw out of a routine called from compiled code");
+			return;
+		}
+
+		// Pop the stack down to it.
+		while (frameDepth > j)
+			popFrame();
 
 		// We have the frame; now do a RET a
 		zop_ret();
@@ -2270,6 +2961,7 @@ public class ZCPU extends Object implements Runnable {
         int numvars;
         int numargs;
 		int newFrameNumber;
+        ZCompiledRoutine r;
 
         // First, make sure raddr is not 0
         if (vops[0] == 0) {
@@ -2287,6 +2979,15 @@ public class ZCPU extends Object implements Runnable {
         // Get the number of local variables
         numvars = memory.fetchByte(addr);
 
+        // Run the routine as compiled code, if it has been compiled.
+        if (runtime != null) {
+            r = runtime.lookup(addr);
+            if (r != null) {
+                putVariable(curResult,runtime.run(r,getArguments(numvars)));
+                return;
+            }
+        }
+
         // Bump the address past the variables byte, in any version
         addr++;
 
@@ -2296,11 +2997,8 @@ public class ZCPU extends Object implements Runnable {
 		// Get the number of the next call frame.
 		newFrameNumber = curCallFrame.frameNumber + 1;
 
-        // Push the current call frame onto the stack.
-        callStack.push(curCallFrame);
-
-        // Initialize a new call frame
-        curCallFrame = new ZCallFrame();
+        // Push a new call frame
+        pushFrame();
 
         // Put the PC at the appropriate place, depending on
         // whether local variables are present.
@@ -2309,8 +3007,8 @@ public class ZCPU extends Object implements Runnable {
         else
             curCallFrame.pc = addr;
 
-        // Create an empty routine stack
-        curCallFrame.routineStack = new Stack();
+        // The new routine's stack starts above the caller's
+        curCallFrame.stackBase = sp;
 
         // Initialize local variables
         curCallFrame.numLocalVars = numvars;
@@ -2369,11 +3067,8 @@ public class ZCPU extends Object implements Runnable {
     // READ baddr1 baddr2 [time raddr] <result> V5+
     private void zop_read()
     {
-        String s;
         StringBuffer sb;
         int termChar;
-        int len;
-        int curaddr;
 		int baddr1, baddr2;
         int time = 0, raddr = 0;
         
@@ -2393,39 +3088,53 @@ public class ZCPU extends Object implements Runnable {
 
         // Read a line of text
         sb = new StringBuffer();
-        if ((time > 0) && (raddr > 0)) { // A timed READ
-            while (true) { // Ick.
-                termChar = ioCard.readLine(sb,time);
-                if (termChar == -1) { // A timeout
-//                    ioCard.outputFlush();
-//                    did_newline = false;
-                    for (int i = 0; i < sb.length(); i++)
-                        ioCard.printString("\b");
-                    int rc = interrupt(raddr);
-                    if (rc == 0) {
-//                        if (did_newline) {
-//                            ioCard.printString("\n" + sb.toString());
-//                            ioCard.outputFlush();
-//                        }
-                        ioCard.printString(sb.toString());
-                        ioCard.outputFlush();
-                        continue;
-                    }
-                    else {
-                        ioCard.outputFlush();
-                        sb = new StringBuffer();
-                        termChar = 0;
-                        break;
-                    }
-                }
-                else // Not a timeout
-                    break;
-            }
-        }
-        else
+        if ((time > 0) && (raddr > 0)) // A timed READ
+            readTimed(baddr1,baddr2,time,raddr,curResult,sb);
+        else {
             termChar = ioCard.readLine(sb,0);
-        s = sb.toString();
-        
+            finishRead(baddr1,baddr2,curResult,sb.toString(),termChar);
+        }
+    }
+
+    // Carry on with a timed READ, which has read the characters in sb
+    // so far.  Each time the read times out, the routine at raddr is
+    // called as an interrupt; if it returns false, reading carries on
+    // (from here, when the interrupt returns), and otherwise the input
+    // is thrown away.
+    private void readTimed(final int baddr1,final int baddr2,final int time,final int raddr,final int result,final StringBuffer sb)
+    {
+        int termChar;
+
+        termChar = ioCard.readLine(sb,time);
+        if (termChar != -1) { // Not a timeout
+            finishRead(baddr1,baddr2,result,sb.toString(),termChar);
+            return;
+        }
+
+        // A timeout
+        for (int i = 0; i < sb.length(); i++)
+            ioCard.printString("\b");
+        interrupt(raddr,rc -> {
+            if (rc == 0) {
+                ioCard.printString(sb);
+                ioCard.outputFlush();
+                readTimed(baddr1,baddr2,time,raddr,result,sb);
+            }
+            else {
+                ioCard.outputFlush();
+                finishRead(baddr1,baddr2,result,"",0);
+            }
+        });
+    }
+
+    // Finish a READ: store the line s in the text buffer at baddr1,
+    // tokenise it into baddr2, and in V5+ store the terminating
+    // character in the result variable.
+    private void finishRead(int baddr1,int baddr2,int result,String s,int termChar)
+    {
+        int len;
+        int curaddr;
+
         // If V1-4, just store the line.  If V5+, possibly
         // store it after other characters in the buffer.
         if (version <= 4) {
@@ -2458,28 +3167,22 @@ public class ZCPU extends Object implements Runnable {
 
         // If V5+, store result
 		if (version >= 5)
-			putVariable(curResult,termChar);
+			putVariable(result,termChar);
     }
 
     // PRINT_CHAR n
     private void zop_print_char()
     {
-        String s;
-
-        s = new String(String.valueOf((char)vops[0]));
-        ioCard.printString(s);
+        ioCard.printChar((char)vops[0]);
     }
 
     // PRINT_NUM s
     private void zop_print_num()
     {
         int sop1;
-        String s;
 
         sop1 = signedWord(vops[0]);
-
-        s = new String(String.valueOf(sop1));
-        ioCard.printString(s);
+        ioCard.printNumber(sop1);
     }
 
     // RANDOM s <result>
@@ -2634,30 +3337,36 @@ public class ZCPU extends Object implements Runnable {
 		int c;
 
 		ioCard.outputFlush();
-		if ((numvops > 1) && (vops[1] != 0) && (vops[2] != 0)) { // A timed READ_CHAR
-		    while (true) { // Yuck.
-		        c = ioCard.readChar(vops[1]);
-		        if (c == -1) { // A timeout
-		            int rc = interrupt(vops[2]);
-		            if (rc == 0)
-		                continue;
-		            else {
-		                putVariable(curResult,0);
-		                return;
-		            }
-		        }
-		        else { // A character
-		            putVariable(curResult,c);
-		            return;
-		        }
-		    }
-		}
+		if ((numvops > 1) && (vops[1] != 0) && (vops[2] != 0)) // A timed READ_CHAR
+		    readCharTimed(vops[1],vops[2],curResult);
 		else {
     		c = ioCard.readChar(0);
 	    	putVariable(curResult,c);
 	    }
     }
 
+    // Carry on with a timed READ_CHAR.  As with a timed READ, the
+    // routine at raddr is called as an interrupt on each timeout, and
+    // reading carries on from here if it returns false.
+    private void readCharTimed(final int time,final int raddr,final int result)
+    {
+        int c;
+
+        c = ioCard.readChar(time);
+        if (c != -1) { // A character
+            putVariable(result,c);
+            return;
+        }
+
+        // A timeout
+        interrupt(raddr,rc -> {
+            if (rc == 0)
+                readCharTimed(time,raddr,result);
+            else
+                putVariable(result,0);
+        });
+    }
+
     // SCAN_TABLE a baddr n [byte] <result> <branch>    V4+
     private void zop_scan_table()
     {
@@ -2716,10 +3425,10 @@ public class ZCPU extends Object implements Runnable {
         int numvars;
         int numargs;
 		int newFrameNumber;
+        ZCompiledRoutine r;
 
         // First, make sure raddr is not 0
         if (vops[0] == 0) {
-            putVariable(curResult,0);
             return;
         }
 
@@ -2734,17 +3443,23 @@ public class ZCPU extends Object implements Runnable {
         // Get the number of local variables
         numvars = memory.fetchByte(addr);
 
+        // Run the routine as compiled code, if it has been compiled.
+        if (runtime != null) {
+            r = runtime.lookup(addr);
+            if (r != null) {
+                runtime.run(r,getArguments(numvars));
+                return;
+            }
+        }
+
         // Bump the address past the variables byte, in any version
         addr++;
 
 		// Get the number of the next call frame.
 		newFrameNumber = curCallFrame.frameNumber + 1;
 
-        // Push the current call frame onto the stack.
-        callStack.push(curCallFrame);
-
-        // Initialize a new call frame
-        curCallFrame = new ZCallFrame();
+        // Push a new call frame
+        pushFrame();
 
         // Put the PC at the appropriate place, depending on
         // whether local variables are present.
@@ -2753,8 +3468,8 @@ public class ZCPU extends Object implements Runnable {
         else
             curCallFrame.pc = addr;
 
-        // Create an empty routine stack
-        curCallFrame.routineStack = new Stack();
+        // The new routine's stack starts above the caller's
+        curCallFrame.stackBase = sp;
 
         // Initialize local variables
         curCallFrame.numLocalVars = numvars;
@@ -2794,15 +3509,12 @@ public class ZCPU extends Object implements Runnable {
 	// This code could definitely be improved.
     private void zop_tokenise()
     {
-		int dictaddr, numseparators, dictentrysize, numdictentries, bit;
-		int maxtokens, numtokens, maxtokenlen;
-		String s, delimiters, thistoken;
-		int c, len, curaddr, strpos;
-		StringTokenizer tokens;
-		Vector encodedtoken;
-		int i, j, k, curword, curzchar, curindex;
-		boolean match = true;
-		Integer n;
+		int dictaddr, bit;
+		int maxtokens, numtokens;
+		int c, len, textaddr, strpos, toklen;
+		int nzchars, bufferOffset;
+		ZDictionary dict;
+		int entry;
 
 		if (numvops > 2) {
 			dictaddr = vops[2];
@@ -2816,127 +3528,66 @@ public class ZCPU extends Object implements Runnable {
 		// Get the maximum number of tokens
 		maxtokens = memory.fetchByte(vops[1]);
 
-		// Set maximum token length, in words
-		if (version < 4)
-			maxtokenlen = 2;
-		else
-			maxtokenlen = 3;
-
-		// Construct a Java string from the input string.
-		s = new String();
+		// Find the input text.
 		if (version <= 4) { // Null-terminated input string
-			curaddr = vops[0] + 1;
-			c = memory.fetchByte(curaddr);
-			while (c != 0) {
-				s = s + String.valueOf((char)c);
-				curaddr++;
-				c = memory.fetchByte(curaddr);
-			}
+			textaddr = vops[0] + 1;
+			len = 0;
+			while (memory.fetchByte(textaddr + len) != 0)
+				len++;
 		}
 		else { // String with length value
 			len = memory.fetchByte(vops[0] + 1);
-			curaddr = vops[0] + 2;
-			for (i=0;i<len;i++) {
-				s = s + String.valueOf((char)memory.fetchByte(curaddr));
-				curaddr++;
-			}
+			textaddr = vops[0] + 2;
 		}
 
-		// Create a string containing separators.
-		delimiters = new String(" "); // Space is always a delimiter.
-		numseparators = memory.fetchByte(dictaddr);
-		for (i=1;i<=numseparators;i++)
-			delimiters = delimiters + String.valueOf((char)memory.fetchByte(dictaddr+i));
-
-		// Get the number and length of dictionary entries.
-		curaddr = dictaddr + 1 + numseparators;
-		dictentrysize = memory.fetchByte(curaddr);
-		curaddr++;
-		numdictentries = signedWord(memory.fetchWord(curaddr));
-		curaddr += 2;
-		if (numdictentries < 0)
-			numdictentries = Math.abs(numdictentries); // We don't care whether the entries are sorted.
-
-		// Parse through the input string.  I think the Java StringTokenizer class is neat.
-		tokens = new StringTokenizer(s,delimiters,true);
+		// Set the number of Z-characters in a dictionary word
+		if (version < 4)
+			nzchars = 6;
+		else
+			nzchars = 9;
+
+        // Sneaky--in v1-4, there is 1 length byte at the front of the input buffer. In v5+,
+        // there are 2. See zop_read.
+        if (version <= 4)
+            bufferOffset = 1;
+        else
+            bufferOffset = 2;
+
+		// Go through the input text.  Spaces separate tokens, and so do
+		// the dictionary's separators, each of which is a token itself.
+		dict = getDictionary(dictaddr);
 		numtokens = 0;
-		strpos = 0; // Since the StringTokenizer isn't discarding any characters, we use
-					// strpos to keep track of our position within the string, so we can
-					// store the location of each token within the input string.
-		while (tokens.hasMoreTokens() && (numtokens < maxtokens)) {
-			thistoken = tokens.nextToken();
-			if (thistoken.equals(" ")) { // Ignore spaces
+		strpos = 0;
+		while ((strpos < len) && (numtokens < maxtokens)) {
+			c = memory.fetchByte(textaddr + strpos);
+			if (c == ' ') { // Ignore spaces
 				strpos++;
 				continue;
 			}
-			encodedtoken = encodeZString(thistoken);
-
-			// Now, loop through the dictionary and check this token against each one
-			// in the dictionary.  Remember that curaddr points to the first dictionary
-			// entry at this point.
-			for (i=0;i<numdictentries;i++) {
-				// Compare this dictionary entry against the encoded string.
-				match = true;
-				curindex = 0;
-				for (j=0;j<maxtokenlen;j++) {
-					curword = memory.fetchWord(curaddr + (i * dictentrysize) + (j*2));
-					for (k=2;k>=0;k--) {
-						curzchar = ((curword >> (k*5)) & 0x1f);
-						if (curindex == encodedtoken.size()) {
-							if (curzchar != 5) {
-								match = false;
-								break;
-							}
-							else
-								continue;
-						}
-						else { // curindex valid
-							n = (Integer)encodedtoken.elementAt(curindex);
-							curindex++;
-							if (curzchar != n.intValue()) {
-								match = false;
-								break;
-							}
-						}
-					}
-
-					// Break out of this token comparison if we know it's false.
-					if (!match)
+			toklen = 1;
+			if (!dict.isSeparator(c)) {
+				while (strpos + toklen < len) {
+					c = memory.fetchByte(textaddr + strpos + toklen);
+					if ((c == ' ') || dict.isSeparator(c))
 						break;
+					toklen++;
 				}
-
-				// Break out of the dictionary walk if this token matches.
-				if (match)
-					break;
 			}
 
-			// This is a kludge.  It is possible for match to be true if
-			// the loop exits at the end of the dictionary.
-			if (i >= numdictentries)
-				match = false;
-
-			// Store the token.  i still is the dictionary entry number of the matched entry.
-            // Sneaky--in v1-4, there is 1 length byte at the front of the input buffer. In v5+,
-            // there are 2. See zop_read.
-            int bufferOffset;
-            if (version <= 4) {
-                bufferOffset = 1;
-            } else {
-                bufferOffset = 2;
-            }
-            if (match) {
-				memory.putWord((vops[1] + 2 + (numtokens * 4)),(curaddr + (i * dictentrysize))); // Memory location of dictionary entry
-				memory.putByte((vops[1] + 2 + (numtokens * 4) + 2),thistoken.length()); // Length of word
+			// Look the token up in the dictionary, and store it.
+			entry = dict.lookup(encodeZChars(textaddr + strpos,toklen,nzchars));
+            if (entry != 0) {
+				memory.putWord((vops[1] + 2 + (numtokens * 4)),entry); // Memory location of dictionary entry
+				memory.putByte((vops[1] + 2 + (numtokens * 4) + 2),toklen); // Length of word
                 memory.putByte((vops[1] + 2 + (numtokens * 4) + 3),(strpos + bufferOffset)); // Position in input buffer; see above
 			}
 			else if (bit == 0) { // If bit is set, leave the slot alone
 				memory.putWord((vops[1] + 2 + (numtokens * 4)),0);
-				memory.putByte((vops[1] + 2 + (numtokens * 4) + 2),thistoken.length()); // Length of word
+				memory.putByte((vops[1] + 2 + (numtokens * 4) + 2),toklen); // Length of word
 				memory.putByte((vops[1] + 2 + (numtokens * 4) + 3),(strpos + bufferOffset)); // Position in input buffer; see above
 			}
 
-
-			strpos += thistoken.length();
+			strpos += toklen;
 			numtokens++;
 		}
 
@@ -2944,56 +3595,45 @@ public class ZCPU extends Object implements Runnable {
 		memory.putByte((vops[1] + 1),numtokens);
     }
 
+	// Return the index of the dictionary at addr.  Dictionaries in
+	// static memory can't change, so their indexes are kept; one in
+	// dynamic memory is indexed afresh each time.  A story has only a
+	// few dictionaries, so the kept indexes are just searched in turn.
+	private ZDictionary getDictionary(int addr)
+	{
+		ZDictionary dict;
+
+		if (addr < dynamicMemorySize)
+			return new ZDictionary(memory,addr,version);
+		for (int i=0;i<numDictionaries;i++)
+			if (dictionaryAddrs[i] == addr)
+				return dictionaries[i];
+		dict = new ZDictionary(memory,addr,version);
+		if (numDictionaries == dictionaries.length) {
+			dictionaryAddrs = Arrays.copyOf(dictionaryAddrs,numDictionaries * 2);
+			dictionaries = Arrays.copyOf(dictionaries,numDictionaries * 2);
+		}
+		dictionaryAddrs[numDictionaries] = addr;
+		dictionaries[numDictionaries++] = dict;
+		return dict;
+	}
+
     // ENCODE_TEXT baddr1 p n baddr2            V5+
     private void zop_encode_text()
     {
-		String s;
-		Vector encodedstr;
-		int curindex, maxlen, encodedlen;
-		int i, w;
-		Integer n;
-
-		// First, make a string out of the text to encode.
-		s = new String();
-		for (i=0;i<vops[2];i++)
-			s = s + String.valueOf((char)memory.fetchByte(vops[0]+vops[1]+i));
+		long encoded;
+		int maxlen;
 
-		// Encode it.
-		encodedstr = encodeZString(s);
-
-		// Now copy to memory, storing Z-characters appropriately and respecting length limits.
+		// Encode the text as a dictionary word.
 		if (version < 4)
 			maxlen = 2;
 		else
 			maxlen = 3;
+		encoded = encodeZChars(vops[0] + vops[1],vops[2],maxlen * 3);
 
-		curindex = 0;
-		encodedlen = encodedstr.size();
-		for (i=0;i<maxlen;i++) {
-			w = 0;
-			if (curindex < encodedlen) {
-				n = (Integer)encodedstr.elementAt(curindex);
-				w = w | ((n.intValue() << 10) & 0x7c00);
-				curindex++;
-			}
-			else
-				w = w | ((5 << 10) & 0x7c00);
-			if (curindex < encodedlen) {
-				n = (Integer)encodedstr.elementAt(curindex);
-				w = w | ((n.intValue() << 5) & 0x03e0);
-				curindex++;
-			}
-			else
-				w = w | ((5 << 5) & 0x3e0);
-			if (curindex < encodedlen) {
-				n = (Integer)encodedstr.elementAt(curindex);
-				w = w | (n.intValue() & 0x001f);
-				curindex++;
-			}
-			else
-				w = w | 5;
-			memory.putWord((vops[2] + (i*2)),w);
-		}
+		// Store it, setting the end-of-string bit on the last word.
+		for (int i=0;i<maxlen;i++)
+			memory.putWord((vops[3] + (i*2)),(int)((encoded >> ((maxlen - 1 - i) * 15)) & 0x7fff) | ((i == maxlen - 1) ? 0x8000 : 0));
     }
 
     // COPY_TABLE baddr1 baddr2 s               V5+
@@ -3055,7 +3695,7 @@ public class ZCPU extends Object implements Runnable {
         for (int i=0;i<y;i++) {
             for (int j = 0;j<x;j++) {
                 c = memory.fetchByte(lineAddr + j);
-                ioCard.printString(String.valueOf((char)c));
+                ioCard.printChar((char)c);
             }
             lineAddr += x + n;
         }
@@ -3083,7 +3723,7 @@ public class ZCPU extends Object implements Runnable {
     {
 		String fn;
 		String suggested;
-		FileOutputStream fos;
+		ByteArrayOutputStream bos;
 		DataOutputStream dos;
 		int slen;
 
@@ -3111,15 +3751,18 @@ public class ZCPU extends Object implements Runnable {
 		}
 
 		try {
-			fos = new FileOutputStream(fn);
-			dos = new DataOutputStream(fos);
+			bos = new ByteArrayOutputStream(vops[1]);
+			dos = new DataOutputStream(bos);
 			memory.dumpMemory(dos,vops[0],vops[1]);
-			fos.close();
 		}
 		catch (IOException ex1) {
 			putVariable(curResult,0);
 			return;
 		}
+		if (!saveFile(fn,bos.toByteArray())) {
+			putVariable(curResult,0);
+			return;
+		}
 
 		// We did it!
 		putVariable(curResult,1);
@@ -3158,6 +3801,7 @@ public class ZCPU extends Object implements Runnable {
 		}
 
 		try {
+			waitForSaves();
 			fis = new FileInputStream(fn);
 			dis = new DataInputStream(fis);
 			memory.readMemory(dis,vops[0],vops[1]);
@@ -3247,19 +3891,14 @@ public class ZCPU extends Object implements Runnable {
     // SAVE_UNDO <result>                   V5+
     private void zop_save_undo()
     {
-		ByteArrayOutputStream bos;
-		DataOutputStream dos;
-
-        try {
-        	bos = new ByteArrayOutputStream(65536);
-	    	dos = new DataOutputStream(bos);
-		    dumpState(dos);
-		    memory.dumpMemory(dos,0,dynamicMemorySize);
-		    undoState = bos.toByteArray();
-        }
-        catch (IOException ioex) {
-            zui.fatal("I/O exception during SAVE_UNDO??");
-        }
+		if (!canSaveFrames()) {
+			if (version <= 3)
+				dontBranch();
+			else
+				putVariable(curResult,0);
+			return;
+		}
+		undoRing.push(packState(),memory.snapshot());
 
 		// We did it!
 		if (version <= 3)
@@ -3271,22 +3910,24 @@ public class ZCPU extends Object implements Runnable {
     // RESTORE_UNDO <result>                V5+
     private void zop_restore_undo()
     {
-		ByteArrayInputStream bis;
-		DataInputStream dis;
 		int tsBit;
 
+		// Fail if there's nothing to undo
+		if (undoRing.size() == 0) {
+			putVariable(curResult,0);
+			return;
+		}
+		if (interruptAbove(0)) {
+			zui.fatal("RESTORE_UNDO: Can't restore inside a routine called from compiled code");
+			return;
+		}
+
 		// Remember the transcript bit
 		tsBit = memory.fetchWord(0x10) & 0x0001;
 
-		try {
-			bis = new ByteArrayInputStream(undoState);
-			dis = new DataInputStream(bis);
-			readState(dis);
-			memory.readMemory(dis,0,dynamicMemorySize);
-		}
-		catch (IOException ex1) {
-		    zui.fatal("I/O Exception during RESTORE_UNDO???");
-		}
+		unpackState(undoRing.newestState());
+		memory.restore(undoRing.newestPages());
+		undoRing.pop();
 
 		// We did it!
 		memory.putWord(0x10,memory.fetchWord(0x10) | tsBit);
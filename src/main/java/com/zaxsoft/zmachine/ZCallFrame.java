@@ -21,7 +21,7 @@
  */
 package com.zaxsoft.zmachine;
 
-import java.util.Stack;
+import java.util.function.IntConsumer;
 
 /**
  * A frame on the ZMachine's call stack.
@@ -33,13 +33,15 @@ class ZCallFrame {
     static final int FUNCTION = 0;
     static final int PROCEDURE = 1;
     static final int INTERRUPT = 2;
+    static final int CONTINUATION = 3; // An interrupt run by the main loop
 
     // Variables
     int pc; // Program counter
-    Stack routineStack; // Routine stack
+    int stackBase; // Index in ZCPU's value stack where this routine's stack starts
     int[] localVars = new int[15]; // Local variables
     int numLocalVars; // Number of local variables
     int callType; // How this routine was called
     int argCount; // Argument count
 	int frameNumber; // Used in CATCH and THROW.  First frame is 0, increases from there.
+    IntConsumer continuation; // For CONTINUATION frames: finishes the interrupted instruction
 }
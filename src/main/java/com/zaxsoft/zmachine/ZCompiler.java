@@ -0,0 +1,952 @@
+/**
+ * Copyright (c) 2008 Matthew E. Kimmel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.zaxsoft.zmachine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Stack;
+import java.util.Vector;
+
+/**
+ * Translates Z-Machine routines into JVM classes.  Each routine becomes
+ * a hidden class implementing ZCompiledRoutine, whose run method holds
+ * the routine's local variables in JVM locals and follows the routine's
+ * control flow directly; everything else is done by calling ZRuntime.
+ *
+ * Only routines in static memory are compiled, and only if every
+ * instruction they contain is one this class knows how to translate.
+ * Anything that can stop the machine or needs its call stack--input,
+ * SAVE and RESTORE, CATCH and THROW, calls through a variable--keeps
+ * the routine in the interpreter.  A routine is compiled together with
+ * every routine it calls, so compiled code never has to return to the
+ * interpreter part way through.
+ *
+ * These rules are strict.  A routine is only compiled if everything it
+ * can reach compiles too, in at most MAX_ROUTINES routines, and Inform
+ * games make most calls through variables or into routines that print
+ * or read, so in a real game little beyond small leaf routines gets
+ * compiled.  If compiled code is flushed while a compiled caller is
+ * still running, its calls fall back to the interpreter in a nested
+ * decodeLoop; THROW, RESTART and RESTORE can't unwind the compiled
+ * caller from there, and stop the machine if they try.
+ *
+ * @author Matt Kimmel
+ */
+class ZCompiler {
+    // Limits
+    private static final int MAX_ROUTINES = 64; // Most routines compiled in one go
+    private static final int MAX_INSTRUCTIONS = 2000; // Most instructions in one routine
+    private static final int MAX_CODE = 32767; // Largest method; keeps branch offsets in range
+
+    // Names and descriptors used in generated classes
+    private static final String RUNTIME = "com/zaxsoft/zmachine/ZRuntime";
+    private static final String ROUTINE = "com/zaxsoft/zmachine/ZCompiledRoutine";
+    private static final String RUN_DESC = "(Lcom/zaxsoft/zmachine/ZRuntime;[I)I";
+
+    // JVM local variable slots used by the run method
+    private static final int SLOT_RT = 1;
+    private static final int SLOT_ARGS = 2;
+    private static final int SLOT_LOCALS = 2; // Z-Machine local n lives in slot SLOT_LOCALS + n
+    private static final int SLOT_TEMP = 18;
+    private static final int NUM_SLOTS = 19;
+
+    // JVM opcodes
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int ALOAD = 0x19;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ISTORE = 0x36;
+    private static final int IASTORE = 0x4f;
+    private static final int POP = 0x57;
+    private static final int DUP = 0x59;
+    private static final int SWAP = 0x5f;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int GOTO = 0xa7;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int NEWARRAY = 0xbc;
+    private static final int T_INT = 10;
+
+    // Other objects associated with this ZMachine
+    private ZCPU cpu;
+    private ZMemory memory;
+
+    // Private variables
+    private int version; // Version of the game
+    private int staticBase; // Start of static memory
+
+    // State used while generating a class
+    private String className; // Name of the class being generated
+    private ByteArrayOutputStream poolBytes; // Constant pool, as written so far
+    private DataOutputStream pool; // Stream onto poolBytes
+    private int poolCount; // Number of the next constant pool entry
+    private Hashtable<String,Integer> poolIndex; // Constant pool entries already written
+    private byte[] code; // Bytecode of the run method
+    private int codeLen; // Length of the run method
+    private Hashtable<Integer,Integer> labels; // Bytecode offset of each Z-Machine instruction
+    private Vector<int[]> fixups; // Jumps waiting for a label
+    private Vector<Integer> frames; // Offsets needing a stack map frame
+    private Vector<Integer> callees; // Routines called by the routine being compiled
+
+    ZCompiler(ZCPU cpu,ZMemory memory,int version,int staticBase)
+    {
+        this.cpu = cpu;
+        this.memory = memory;
+        this.version = version;
+        this.staticBase = staticBase;
+    }
+
+    // Compile the routine at addr, and every routine it calls.  Returns
+    // a table of compiled routines keyed by address (as Integers), or
+    // null if any of the routines can't be compiled.
+    Hashtable<Integer,ZCompiledRoutine> compile(int addr)
+    {
+        Hashtable<Integer,byte[]> classes = new Hashtable<Integer,byte[]>();
+        Hashtable<Integer,ZCompiledRoutine> routines = new Hashtable<Integer,ZCompiledRoutine>();
+        Stack<Integer> pending = new Stack<Integer>();
+        Enumeration<Integer> e;
+        Integer a;
+        byte[] b;
+        MethodHandles.Lookup lookup;
+
+        // Generate a class for each routine.
+        pending.push(Integer.valueOf(addr));
+        while (!pending.empty()) {
+            a = pending.pop();
+            if (classes.containsKey(a))
+                continue;
+            if (classes.size() >= MAX_ROUTINES)
+                return null;
+            b = generate(a.intValue());
+            if (b == null)
+                return null;
+            classes.put(a,b);
+            for (int i = 0;i < callees.size();i++)
+                pending.push(callees.elementAt(i));
+        }
+
+        // Load them all.  If the JVM objects to any of them, just
+        // leave everything to the interpreter.
+        try {
+            e = classes.keys();
+            while (e.hasMoreElements()) {
+                a = e.nextElement();
+                lookup = MethodHandles.lookup().defineHiddenClass(classes.get(a),true);
+                routines.put(a,(ZCompiledRoutine)lookup.findConstructor(lookup.lookupClass(),
+                                                      MethodType.methodType(void.class)).invoke());
+            }
+        }
+        catch (Throwable t) {
+            return null;
+        }
+        return routines;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // Translation
+    ///////////////////////////////////////////////////////////////////
+
+    // Generate the class file for the routine at addr, or return null
+    // if it can't be compiled.
+    private byte[] generate(int addr)
+    {
+        Hashtable<Integer,ZInstruction> found;
+        int[] pcs;
+        int numvars, start, pc, next, dflt;
+        ZInstruction ins;
+        Enumeration<Integer> e;
+        int[] fixup;
+
+        if ((addr < staticBase) || (addr >= memory.dataLength))
+            return null;
+        numvars = memory.fetchByte(addr);
+        if (numvars > 15)
+            return null;
+        if (version < 5)
+            start = addr + 1 + (numvars * 2);
+        else
+            start = addr + 1;
+
+        // Find the routine's instructions.
+        found = findInstructions(start);
+        if (found == null)
+            return null;
+        pcs = new int[found.size()];
+        e = found.keys();
+        for (int i = 0;e.hasMoreElements();i++)
+            pcs[i] = e.nextElement().intValue();
+        Arrays.sort(pcs);
+
+        // Start a new class.
+        className = "com/zaxsoft/zmachine/ZRoutine" + Integer.toHexString(addr);
+        poolBytes = new ByteArrayOutputStream();
+        pool = new DataOutputStream(poolBytes);
+        poolCount = 1;
+        poolIndex = new Hashtable<String,Integer>();
+        code = new byte[1024];
+        codeLen = 0;
+        labels = new Hashtable<Integer,Integer>();
+        fixups = new Vector<int[]>();
+        frames = new Vector<Integer>();
+        callees = new Vector<Integer>();
+
+        // Set up local variables from the arguments and defaults.
+        for (int v = 1;v <= 15;v++) {
+            if (v <= numvars) {
+                if (version < 5)
+                    dflt = memory.fetchWord(addr + 1 + ((v - 1) * 2));
+                else
+                    dflt = 0;
+                op(ALOAD);
+                op(SLOT_RT);
+                op(ALOAD);
+                op(SLOT_ARGS);
+                pushInt(v - 1);
+                pushInt(dflt);
+                invoke("arg","([III)I");
+            }
+            else
+                op(ICONST_0);
+            op(ISTORE);
+            op(SLOT_LOCALS + v);
+        }
+        op(ICONST_0);
+        op(ISTORE);
+        op(SLOT_TEMP);
+
+        // Translate each instruction.
+        for (int i = 0;i < pcs.length;i++) {
+            pc = pcs[i];
+            ins = found.get(Integer.valueOf(pc));
+            next = pc + ins.length;
+            labels.put(Integer.valueOf(pc),Integer.valueOf(codeLen));
+            markFrame();
+            if (!translate(ins,next))
+                return null;
+            // Instructions may overlap, so the one that follows in
+            // the routine isn't necessarily the next one emitted.
+            if (!endsRoutine(ins) && ((i + 1 == pcs.length) || (pcs[i + 1] != next)))
+                jump(GOTO,next);
+            if (codeLen > MAX_CODE)
+                return null;
+        }
+
+        // Fill in jumps.
+        for (int i = 0;i < fixups.size();i++) {
+            fixup = fixups.elementAt(i);
+            patch(fixup[0],labels.get(Integer.valueOf(fixup[1])).intValue() - fixup[0]);
+        }
+
+        try {
+            return classFile();
+        }
+        catch (IOException ex) {
+            return null;
+        }
+    }
+
+    // Find all instructions reachable from start.  Returns a table of
+    // ZInstructions keyed by address, or null if control can leave
+    // static memory or the routine is too long.
+    private Hashtable<Integer,ZInstruction> findInstructions(int start)
+    {
+        Hashtable<Integer,ZInstruction> found = new Hashtable<Integer,ZInstruction>();
+        Stack<Integer> pending = new Stack<Integer>();
+        ZInstruction ins;
+        Integer pc;
+        int next;
+
+        pending.push(Integer.valueOf(start));
+        while (!pending.empty()) {
+            pc = pending.pop();
+            if (found.containsKey(pc))
+                continue;
+            if ((pc.intValue() < staticBase) || (pc.intValue() >= memory.dataLength) ||
+                (found.size() >= MAX_INSTRUCTIONS))
+                return null;
+            ins = cpu.fetchInstruction(pc.intValue());
+            found.put(pc,ins);
+            next = pc.intValue() + ins.length;
+
+            if (cpu.hasBranch(ins.opcodeType,ins.opcode) && (ins.branch != 0) && (ins.branch != 1))
+                pending.push(Integer.valueOf(next + ins.branch - 2));
+            if (isJump(ins)) {
+                if (ins.operandKinds[0] == ZInstruction.VARIABLE)
+                    return null;
+                pending.push(Integer.valueOf(next + cpu.signedWord(ins.operands[0]) - 2));
+            }
+            else if (!endsRoutine(ins))
+                pending.push(Integer.valueOf(next));
+        }
+        return found;
+    }
+
+    // Is this a JUMP?
+    private boolean isJump(ZInstruction ins)
+    {
+        return ((ins.opcodeType == ZCPU.OPTYPE_1OP) && (ins.opcode == 0x0c));
+    }
+
+    // Does control never pass to the instruction following this one?
+    private boolean endsRoutine(ZInstruction ins)
+    {
+        if (ins.opcodeType == ZCPU.OPTYPE_0OP)
+            return ((ins.opcode <= 0x01) || (ins.opcode == 0x03) || (ins.opcode == 0x08));
+        else if (ins.opcodeType == ZCPU.OPTYPE_1OP)
+            return ((ins.opcode == 0x0b) || (ins.opcode == 0x0c));
+        return false;
+    }
+
+    // Translate one instruction.  next is the address of the following
+    // instruction.  Returns false if the instruction can't be compiled.
+    private boolean translate(ZInstruction ins,int next)
+    {
+        int n = ins.numOperands;
+
+        switch (ins.opcodeType) {
+            case ZCPU.OPTYPE_0OP :
+                switch (ins.opcode) {
+                    case 0x00 : // RTRUE
+                    case 0x01 : // RFALSE
+                        pushInt(ins.opcode == 0x00 ? 1 : 0);
+                        op(IRETURN);
+                        return true;
+                    case 0x02 : // PRINT
+                    case 0x03 : // PRINT_RET
+                        op(ALOAD);
+                        op(SLOT_RT);
+                        pushInt(ins.stringAddr);
+                        invoke("printString","(I)V");
+                        if (ins.opcode == 0x03) {
+                            op(ALOAD);
+                            op(SLOT_RT);
+                            invoke("newLine","()V");
+                            pushInt(1);
+                            op(IRETURN);
+                        }
+                        return true;
+                    case 0x04 : // NOP
+                        return true;
+                    case 0x08 : // RET_POPPED
+                        loadVariable(0);
+                        op(IRETURN);
+                        return true;
+                    case 0x09 : // POP
+                        if (version >= 5)
+                            return false;
+                        loadVariable(0);
+                        op(POP);
+                        return true;
+                    case 0x0b : // NEW_LINE
+                        op(ALOAD);
+                        op(SLOT_RT);
+                        invoke("newLine","()V");
+                        return true;
+                }
+                return false;
+
+            case ZCPU.OPTYPE_1OP :
+                switch (ins.opcode) {
+                    case 0x00 : return helper(ins,next,"jz","(I)Z",1);
+                    case 0x01 : return helper(ins,next,"getSibling","(I)I",1);
+                    case 0x02 : return helper(ins,next,"getChild","(I)I",1);
+                    case 0x03 : return helper(ins,next,"getParent","(I)I",1);
+                    case 0x04 : return helper(ins,next,"getPropLen","(I)I",1);
+                    case 0x05 : // INC
+                    case 0x06 : // DEC
+                        if (ins.operandKinds[0] == ZInstruction.VARIABLE)
+                            return false;
+                        loadVariable(ins.operands[0]);
+                        op(ALOAD);
+                        op(SLOT_RT);
+                        op(SWAP);
+                        invoke(ins.opcode == 0x05 ? "inc" : "dec","(I)I");
+                        storeVariable(ins.operands[0]);
+                        return true;
+                    case 0x07 : return helper(ins,next,"printAddr","(I)V",1);
+                    case 0x08 : return call(ins);
+                    case 0x09 : return helper(ins,next,"removeObj","(I)V",1);
+                    case 0x0a : return helper(ins,next,"printObj","(I)V",1);
+                    case 0x0b : // RET
+                        loadOperand(ins,0);
+                        op(IRETURN);
+                        return true;
+                    case 0x0c : // JUMP
+                        jump(GOTO,next + cpu.signedWord(ins.operands[0]) - 2);
+                        return true;
+                    case 0x0d : return helper(ins,next,"printPaddr","(I)V",1);
+                    case 0x0e : // LOAD
+                        if (ins.operandKinds[0] == ZInstruction.VARIABLE)
+                            return false;
+                        loadVariable(ins.operands[0]);
+                        storeVariable(ins.result);
+                        return true;
+                    case 0x0f : // NOT (CALL_1N in V5+)
+                        if (version >= 5)
+                            return call(ins);
+                        return not(ins,next);
+                }
+                return false;
+
+            case ZCPU.OPTYPE_2OP :
+                switch (ins.opcode) {
+                    case 0x01 : // JE
+                        if (n == 2)
+                            return helper(ins,next,"je","(II)Z",2);
+                        else if (n == 3)
+                            return helper(ins,next,"je","(III)Z",3);
+                        else if (n == 4)
+                            return helper(ins,next,"je","(IIII)Z",4);
+                        return false;
+                    case 0x02 : return helper(ins,next,"jl","(II)Z",2);
+                    case 0x03 : return helper(ins,next,"jg","(II)Z",2);
+                    case 0x04 : // DEC_CHK
+                    case 0x05 : // INC_CHK
+                        if (ins.operandKinds[0] == ZInstruction.VARIABLE)
+                            return false;
+                        loadOperand(ins,1);
+                        op(ISTORE);
+                        op(SLOT_TEMP);
+                        loadVariable(ins.operands[0]);
+                        op(ALOAD);
+                        op(SLOT_RT);
+                        op(SWAP);
+                        invoke(ins.opcode == 0x05 ? "inc" : "dec","(I)I");
+                        storeVariable(ins.operands[0]);
+                        op(ALOAD);
+                        op(SLOT_RT);
+                        loadVariable(ins.operands[0]);
+                        op(ILOAD);
+                        op(SLOT_TEMP);
+                        invoke(ins.opcode == 0x05 ? "jg" : "jl","(II)Z");
+                        branch(ins,next);
+                        return true;
+                    case 0x06 : return helper(ins,next,"jin","(II)Z",2);
+                    case 0x07 : return helper(ins,next,"test","(II)Z",2);
+                    case 0x08 : return helper(ins,next,"or","(II)I",2);
+                    case 0x09 : return helper(ins,next,"and","(II)I",2);
+                    case 0x0a : return helper(ins,next,"testAttr","(II)Z",2);
+                    case 0x0b : return helper(ins,next,"setAttr","(II)V",2);
+                    case 0x0c : return helper(ins,next,"clearAttr","(II)V",2);
+                    case 0x0d : // STORE
+                        if (ins.operandKinds[0] == ZInstruction.VARIABLE)
+                            return false;
+                        loadOperand(ins,1);
+                        storeVariable(ins.operands[0]);
+                        return true;
+                    case 0x0e : return helper(ins,next,"insertObj","(II)V",2);
+                    case 0x0f : return helper(ins,next,"loadw","(II)I",2);
+                    case 0x10 : return helper(ins,next,"loadb","(II)I",2);
+                    case 0x11 : return helper(ins,next,"getProp","(II)I",2);
+                    case 0x12 : return helper(ins,next,"getPropAddr","(II)I",2);
+                    case 0x13 : return helper(ins,next,"getNextProp","(II)I",2);
+                    case 0x14 : return helper(ins,next,"add","(II)I",2);
+                    case 0x15 : return helper(ins,next,"sub","(II)I",2);
+                    case 0x16 : return helper(ins,next,"mul","(II)I",2);
+                    case 0x17 : return helper(ins,next,"div","(II)I",2);
+                    case 0x18 : return helper(ins,next,"mod","(II)I",2);
+                    case 0x19 : // CALL_2S
+                    case 0x1a : // CALL_2N
+                        return call(ins);
+                }
+                return false;
+
+            case ZCPU.OPTYPE_VAR :
+                switch (ins.opcode) {
+                    case 0x00 : // CALL_VS
+                    case 0x0c : // CALL_VS2
+                    case 0x19 : // CALL_VN
+                    case 0x1a : // CALL_VN2
+                        return call(ins);
+                    case 0x01 : return helper(ins,next,"storew","(III)V",3);
+                    case 0x02 : return helper(ins,next,"storeb","(III)V",3);
+                    case 0x03 : return helper(ins,next,"putProp","(III)V",3);
+                    case 0x05 : return helper(ins,next,"printChar","(I)V",1);
+                    case 0x06 : return helper(ins,next,"printNum","(I)V",1);
+                    case 0x07 : return helper(ins,next,"random","(I)I",1);
+                    case 0x08 : // PUSH
+                        if (n < 1)
+                            return false;
+                        loadOperands(ins,1);
+                        storeVariable(0);
+                        return true;
+                    case 0x09 : // PULL
+                        if ((n < 1) || (ins.operandKinds[0] == ZInstruction.VARIABLE))
+                            return false;
+                        loadVariable(0);
+                        storeVariable(ins.operands[0]);
+                        return true;
+                    case 0x18 : // NOT
+                        return not(ins,next);
+                    case 0x1f : // CHECK_ARG_COUNT
+                        if (n < 1)
+                            return false;
+                        op(ALOAD);
+                        op(SLOT_RT);
+                        op(ALOAD);
+                        op(SLOT_ARGS);
+                        loadOperands(ins,1);
+                        invoke("checkArgCount","([II)Z");
+                        branch(ins,next);
+                        return true;
+                }
+                return false;
+        }
+        return false;
+    }
+
+    // Translate an instruction that is done entirely by one ZRuntime
+    // method, taking the first nargs operands.  The method returns a
+    // boolean for an instruction with a <branch>, a value for one with
+    // a <result> (which is also tested if there is a <branch> as well,
+    // as for GET_CHILD), or nothing.
+    private boolean helper(ZInstruction ins,int next,String name,String desc,int nargs)
+    {
+        boolean branches = cpu.hasBranch(ins.opcodeType,ins.opcode);
+        boolean stores = (ins.result >= 0);
+        char type = desc.charAt(desc.length() - 1);
+
+        if (ins.numOperands < nargs)
+            return false;
+        if ((type == 'Z') && (stores || !branches))
+            return false;
+        if ((type == 'I') && !stores)
+            return false;
+        if ((type == 'V') && (stores || branches))
+            return false;
+
+        op(ALOAD);
+        op(SLOT_RT);
+        loadOperands(ins,nargs);
+        // Operands the instruction doesn't use are still read, since
+        // reading the stack pops it.
+        for (int i = nargs;i < ins.numOperands;i++) {
+            loadOperand(ins,i);
+            op(POP);
+        }
+        invoke(name,desc);
+        if (type == 'I') {
+            if (branches)
+                op(DUP);
+            storeVariable(ins.result);
+        }
+        if (branches)
+            branch(ins,next);
+        return true;
+    }
+
+    // Translate NOT, which depends on whether its operand is a byte
+    // constant.
+    private boolean not(ZInstruction ins,int next)
+    {
+        if (ins.operandKinds.length < 1)
+            return false;
+        if (ins.operandKinds[0] == ZInstruction.BYTE_CONSTANT)
+            return helper(ins,next,"notByte","(I)I",1);
+        return helper(ins,next,"not","(I)I",1);
+    }
+
+    // Translate a call.  The routine address must be a constant; the
+    // routine it names is compiled along with this one.
+    private boolean call(ZInstruction ins)
+    {
+        int addr, nargs;
+
+        if ((ins.numOperands < 1) || (ins.operandKinds[0] == ZInstruction.VARIABLE))
+            return false;
+
+        if (ins.operands[0] == 0) {
+            // Calling routine 0 just returns false.
+            for (int i = 1;i < ins.numOperands;i++) {
+                loadOperand(ins,i);
+                op(POP);
+            }
+            if (ins.result >= 0) {
+                pushInt(0);
+                storeVariable(ins.result);
+            }
+            return true;
+        }
+
+        addr = cpu.unpackAddr(ins.operands[0],true);
+        if ((addr < staticBase) || (addr >= memory.dataLength))
+            return false;
+        callees.addElement(Integer.valueOf(addr));
+        nargs = Math.min(ins.numOperands - 1,memory.fetchByte(addr));
+
+        op(ALOAD);
+        op(SLOT_RT);
+        pushInt(addr);
+        pushInt(nargs);
+        op(NEWARRAY);
+        op(T_INT);
+        for (int i = 1;i < ins.numOperands;i++) {
+            // Arguments the routine has no local for are still read,
+            // since reading the stack pops it.
+            if (i <= nargs) {
+                op(DUP);
+                pushInt(i - 1);
+                loadOperand(ins,i);
+                op(IASTORE);
+            }
+            else {
+                loadOperand(ins,i);
+                op(POP);
+            }
+        }
+        invoke("call","(I[I)I");
+        if (ins.result >= 0)
+            storeVariable(ins.result);
+        else
+            op(POP);
+        return true;
+    }
+
+    // Branch on the boolean on top of the stack, according to the
+    // instruction's <branch> argument.
+    private void branch(ZInstruction ins,int next)
+    {
+        int pos;
+
+        if ((ins.branch == 0) || (ins.branch == 1)) {
+            // Return false or true.
+            pos = codeLen;
+            op(ins.branchReversed ? IFNE : IFEQ);
+            u2(0);
+            pushInt(ins.branch);
+            op(IRETURN);
+            patch(pos,codeLen - pos);
+            markFrame();
+        }
+        else
+            jump(ins.branchReversed ? IFEQ : IFNE,next + ins.branch - 2);
+    }
+
+    // Push the first n operands of an instruction, in order.
+    private void loadOperands(ZInstruction ins,int n)
+    {
+        for (int i = 0;i < n;i++)
+            loadOperand(ins,i);
+    }
+
+    // Push the value of operand i of an instruction.
+    private void loadOperand(ZInstruction ins,int i)
+    {
+        if (ins.operandKinds[i] == ZInstruction.VARIABLE)
+            loadVariable(ins.operands[i]);
+        else
+            pushInt(ins.operands[i]);
+    }
+
+    // Push the value of variable v.
+    private void loadVariable(int v)
+    {
+        if (v == 0) {
+            op(ALOAD);
+            op(SLOT_RT);
+            invoke("pop","()I");
+        }
+        else if (v <= 15) {
+            op(ILOAD);
+            op(SLOT_LOCALS + v);
+        }
+        else {
+            op(ALOAD);
+            op(SLOT_RT);
+            pushInt(v);
+            invoke("getGlobal","(I)I");
+        }
+    }
+
+    // Pop a value into variable v.
+    private void storeVariable(int v)
+    {
+        if (v == 0) {
+            op(ALOAD);
+            op(SLOT_RT);
+            op(SWAP);
+            invoke("push","(I)V");
+        }
+        else if (v <= 15) {
+            op(ISTORE);
+            op(SLOT_LOCALS + v);
+        }
+        else {
+            op(ALOAD);
+            op(SLOT_RT);
+            op(SWAP);
+            pushInt(v);
+            invoke("putGlobal","(II)V");
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // Bytecode
+    ///////////////////////////////////////////////////////////////////
+
+    // Append a byte to the code.
+    private void op(int b)
+    {
+        if (codeLen == code.length)
+            code = Arrays.copyOf(code,code.length * 2);
+        code[codeLen++] = (byte)b;
+    }
+
+    // Append a 16-bit value to the code.
+    private void u2(int w)
+    {
+        op(w >> 8);
+        op(w);
+    }
+
+    // Fill in the offset of the branch instruction at pos.
+    private void patch(int pos,int offset)
+    {
+        code[pos + 1] = (byte)(offset >> 8);
+        code[pos + 2] = (byte)offset;
+    }
+
+    // Append a jump to the Z-Machine instruction at addr.
+    private void jump(int opcode,int addr)
+    {
+        int[] fixup = new int[2];
+
+        fixup[0] = codeLen;
+        fixup[1] = addr;
+        fixups.addElement(fixup);
+        op(opcode);
+        u2(0);
+    }
+
+    // Note that the current offset needs a stack map frame.  Every
+    // frame is the same: all locals set, empty stack.
+    private void markFrame()
+    {
+        if (frames.isEmpty() || (frames.lastElement().intValue() < codeLen))
+            frames.addElement(Integer.valueOf(codeLen));
+    }
+
+    // Push an integer constant.
+    private void pushInt(int v)
+    {
+        if ((v >= -1) && (v <= 5))
+            op(ICONST_0 + v);
+        else if ((v >= -128) && (v <= 127)) {
+            op(BIPUSH);
+            op(v);
+        }
+        else if ((v >= -32768) && (v <= 32767)) {
+            op(SIPUSH);
+            u2(v);
+        }
+        else {
+            op(LDC_W);
+            u2(integerConstant(v));
+        }
+    }
+
+    // Call a ZRuntime method.
+    private void invoke(String name,String desc)
+    {
+        op(INVOKEVIRTUAL);
+        u2(methodConstant(RUNTIME,name,desc));
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // Class file
+    ///////////////////////////////////////////////////////////////////
+
+    // Assemble the class file.
+    private byte[] classFile() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream mapBytes = new ByteArrayOutputStream();
+        DataOutputStream map = new DataOutputStream(mapBytes);
+        int thisClass, superClass, routineClass, runtimeClass, arrayClass;
+        int codeName, mapName, initName, initDesc, runName, runDesc, objectInit;
+        int offset, last;
+
+        // Add everything the class refers to to the constant pool.
+        thisClass = classConstant(className);
+        superClass = classConstant("java/lang/Object");
+        routineClass = classConstant(ROUTINE);
+        runtimeClass = classConstant(RUNTIME);
+        arrayClass = classConstant("[I");
+        codeName = utf8Constant("Code");
+        mapName = utf8Constant("StackMapTable");
+        initName = utf8Constant("<init>");
+        initDesc = utf8Constant("()V");
+        runName = utf8Constant("run");
+        runDesc = utf8Constant(RUN_DESC);
+        objectInit = methodConstant("java/lang/Object","<init>","()V");
+
+        // Build the stack map.  The first frame is written in full;
+        // the rest are the same.
+        map.writeShort(frames.size());
+        last = -1;
+        for (int i = 0;i < frames.size();i++) {
+            offset = frames.elementAt(i).intValue();
+            if (i == 0) {
+                map.writeByte(255); // full_frame
+                map.writeShort(offset);
+                map.writeShort(NUM_SLOTS);
+                map.writeByte(7); // Object
+                map.writeShort(thisClass);
+                map.writeByte(7);
+                map.writeShort(runtimeClass);
+                map.writeByte(7);
+                map.writeShort(arrayClass);
+                for (int j = 3;j < NUM_SLOTS;j++)
+                    map.writeByte(1); // Integer
+                map.writeShort(0);
+            }
+            else if (offset - last - 1 < 64)
+                map.writeByte(offset - last - 1); // same_frame
+            else {
+                map.writeByte(251); // same_frame_extended
+                map.writeShort(offset - last - 1);
+            }
+            last = offset;
+        }
+
+        out.writeInt(0xcafebabe);
+        out.writeShort(0);
+        out.writeShort(52);
+        out.writeShort(poolCount);
+        poolBytes.writeTo(out);
+        out.writeShort(0x0030); // ACC_FINAL | ACC_SUPER
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(routineClass);
+        out.writeShort(0); // No fields
+        out.writeShort(2);
+
+        // The constructor
+        out.writeShort(0);
+        out.writeShort(initName);
+        out.writeShort(initDesc);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(17);
+        out.writeShort(1);
+        out.writeShort(1);
+        out.writeInt(5);
+        out.writeByte(ALOAD_0);
+        out.writeByte(INVOKESPECIAL);
+        out.writeShort(objectInit);
+        out.writeByte(RETURN);
+        out.writeShort(0);
+        out.writeShort(0);
+
+        // The run method
+        out.writeShort(0x0001); // ACC_PUBLIC
+        out.writeShort(runName);
+        out.writeShort(runDesc);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + codeLen + 6 + mapBytes.size());
+        out.writeShort(16); // max_stack; calls need at most about half this
+        out.writeShort(NUM_SLOTS);
+        out.writeInt(codeLen);
+        out.write(code,0,codeLen);
+        out.writeShort(0); // No exception handlers
+        out.writeShort(1);
+        out.writeShort(mapName);
+        out.writeInt(mapBytes.size());
+        mapBytes.writeTo(out);
+
+        out.writeShort(0); // No class attributes
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // Return the constant pool index of a UTF8 constant.
+    private int utf8Constant(String s)
+    {
+        return constant("U" + s,1,s,0,0);
+    }
+
+    // Return the constant pool index of a class constant.
+    private int classConstant(String name)
+    {
+        return constant("C" + name,7,null,utf8Constant(name),0);
+    }
+
+    // Return the constant pool index of an integer constant.
+    private int integerConstant(int v)
+    {
+        return constant("I" + v,3,null,v,0);
+    }
+
+    // Return the constant pool index of a method reference.
+    private int methodConstant(String cls,String name,String desc)
+    {
+        int c = classConstant(cls);
+        int nt = constant("N" + name + desc,12,null,utf8Constant(name),utf8Constant(desc));
+
+        return constant("M" + cls + "." + name + desc,10,null,c,nt);
+    }
+
+    // Look up a constant pool entry by key, adding it if necessary.
+    // Depending on the tag, the entry holds s, the 32-bit value a, or
+    // the two 16-bit indices a and b.
+    private int constant(String key,int tag,String s,int a,int b)
+    {
+        Integer index = poolIndex.get(key);
+
+        if (index != null)
+            return index.intValue();
+        try {
+            pool.writeByte(tag);
+            if (tag == 1)
+                pool.writeUTF(s);
+            else if (tag == 3)
+                pool.writeInt(a);
+            else if (tag == 7)
+                pool.writeShort(a);
+            else {
+                pool.writeShort(a);
+                pool.writeShort(b);
+            }
+        }
+        catch (IOException e) {
+            // Can't happen with a ByteArrayOutputStream
+        }
+        index = Integer.valueOf(poolCount++);
+        poolIndex.put(key,index);
+        return index.intValue();
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2008 Matthew E. Kimmel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.zaxsoft.zmachine;
+
+/**
+ * An index of the words in a Z-Machine dictionary, used to look up the
+ * tokens found by TOKENISE.  A word's key is its first 6 (V1-3) or 9
+ * (V4+) Z-characters, packed five bits apiece into a long just as they
+ * are in memory, less the end-of-string bit.  A dictionary whose header
+ * says its entries are sorted (and which really is) is searched with a
+ * binary search; otherwise the words are put in a hash table.
+ *
+ * @author Matt Kimmel
+ */
+class ZDictionary {
+    // Variables
+    String separators; // Word-separator characters
+    private int firstEntry; // Address of the first entry
+    private int entrySize; // Length of each entry in bytes
+    private long[] keys; // Key of each entry
+    private boolean sorted; // true if keys is in ascending order
+    private int[] hashTable; // Entry numbers plus 1, or 0 for an empty slot; null if sorted
+    private int hashMask; // Size of hashTable minus 1
+
+    // Build the index for the dictionary at addr.
+    ZDictionary(ZMemory memory,int addr,int version)
+    {
+        StringBuffer sb;
+        int numseparators;
+        int count;
+        int words;
+        long k;
+        int slot;
+
+        // Get the separators
+        numseparators = memory.fetchByte(addr);
+        sb = new StringBuffer(numseparators);
+        for (int i=1;i<=numseparators;i++)
+            sb.append((char)memory.fetchByte(addr + i));
+        separators = sb.toString();
+
+        // Get the number and length of entries.  A negative number
+        // means they're in no particular order.
+        addr += 1 + numseparators;
+        entrySize = memory.fetchByte(addr);
+        count = memory.fetchWord(addr + 1);
+        if (count >= 0x8000) {
+            count = 0x10000 - count;
+            sorted = false;
+        }
+        else
+            sorted = true;
+        firstEntry = addr + 3;
+
+        // Read the keys, checking that they are in order if they're
+        // meant to be.
+        if (version < 4)
+            words = 2;
+        else
+            words = 3;
+        keys = new long[count];
+        for (int i=0;i<count;i++) {
+            k = 0;
+            for (int j=0;j<words;j++)
+                k = (k << 15) | (memory.fetchWord(firstEntry + (i * entrySize) + (j * 2)) & 0x7fff);
+            keys[i] = k;
+            if ((i > 0) && (k < keys[i - 1]))
+                sorted = false;
+        }
+        if (sorted)
+            return;
+
+        // Otherwise, build a hash table, with open addressing.  Where
+        // the same word appears twice, the first entry wins, as it
+        // would in a linear search.
+        hashMask = Integer.highestOneBit(Math.max(count,8) * 2) * 2 - 1;
+        hashTable = new int[hashMask + 1];
+        for (int i=0;i<count;i++) {
+            slot = hash(keys[i]);
+            while ((hashTable[slot] != 0) && (keys[hashTable[slot] - 1] != keys[i]))
+                slot = (slot + 1) & hashMask;
+            if (hashTable[slot] == 0)
+                hashTable[slot] = i + 1;
+        }
+    }
+
+    // Return true if c is one of the dictionary's word separators.
+    boolean isSeparator(int c)
+    {
+        return (separators.indexOf(c) >= 0);
+    }
+
+    // Return the address of the entry whose key is key, or 0 if there
+    // is none.
+    int lookup(long key)
+    {
+        int lo, hi, mid;
+        int slot;
+
+        if (sorted) {
+            // Find the first entry not less than key.
+            lo = 0;
+            hi = keys.length;
+            while (lo < hi) {
+                mid = (lo + hi) >>> 1;
+                if (keys[mid] < key)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            if ((lo < keys.length) && (keys[lo] == key))
+                return (firstEntry + (lo * entrySize));
+            return 0;
+        }
+
+        slot = hash(key);
+        while (hashTable[slot] != 0) {
+            if (keys[hashTable[slot] - 1] == key)
+                return (firstEntry + ((hashTable[slot] - 1) * entrySize));
+            slot = (slot + 1) & hashMask;
+        }
+        return 0;
+    }
+
+    // Hash a key to a slot in hashTable.
+    private int hash(long key)
+    {
+        key *= 0x9e3779b97f4a7c15L;
+        return ((int)(key >>> 32) & hashMask);
+    }
+}
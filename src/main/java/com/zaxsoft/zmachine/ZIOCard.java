@@ -22,7 +22,6 @@
 package com.zaxsoft.zmachine;
 
 import java.awt.*;
-import java.util.StringTokenizer;
 
 /**
  * This class provides various I/O functions to the ZCPU.
@@ -37,7 +36,8 @@ class ZIOCard extends Object {
     private int version;
     private int inputStream, outputStream;
 	private boolean buffer; // If true, we only output text to the screen when the outputFlush method is called.
-	private StringBuffer outputBuffer;
+	private StringBuilder outputBuffer; // Text waiting for outputFlush(); reused
+	private StringBuilder scratch = new StringBuilder(16); // Holds single characters and numbers being printed
     private boolean[] isOpen = {false,true,true,true,true};
     private int baseMemAddr; // Base address of output stream 3 (or start of line in multiline mode)
     private int curMemAddr; // Current address on output stream 3
@@ -57,13 +57,50 @@ class ZIOCard extends Object {
         outputStream = 1;
         inputStream = 0;
 		buffer = buf;
-		outputBuffer = new StringBuffer();
+		outputBuffer = new StringBuilder(1024);
+    }
+
+    // Return the number of the current output stream
+    int getOutputStream()
+    {
+        return outputStream;
     }
 
     // Print a string to the current output stream
-    void printString(String s)
+    void printString(CharSequence s)
+    {
+        printString(s,0,s.length());
+    }
+
+    // Print a single character to the current output stream
+    void printChar(char c)
+    {
+        if ((outputStream == 1) && buffer) { // The usual case
+            if (isOpen[1])
+                outputBuffer.append(c);
+            return;
+        }
+        scratch.setLength(0);
+        scratch.append(c);
+        printString(scratch,0,1);
+    }
+
+    // Print a number, in decimal, to the current output stream
+    void printNumber(int n)
+    {
+        scratch.setLength(0);
+        scratch.append(n);
+        printString(scratch,0,scratch.length());
+    }
+
+    // Print the characters of s from start up to (but not including)
+    // end to the current output stream.  Nothing keeps hold of s, so
+    // the caller is free to reuse it.
+    void printString(CharSequence s,int start,int end)
     {
         int n;
+        int i, j;
+        char c;
 
         // Ignore anything destined for a closed stream
         if (isOpen[outputStream] == false)
@@ -71,41 +108,52 @@ class ZIOCard extends Object {
         switch (outputStream) {
             case 1 : // Screen -- currently, we send this right on to the user interface unless buffering
 				if (buffer)
-					outputBuffer.append(s);
-				else
+					outputBuffer.append(s,start,end);
+				else if ((start == 0) && (end == s.length()))
 					zui.showString(s);
+				else
+					zui.showString(s.subSequence(start,end));
                 break;
             case 2 : // For now, transcript stuff goes to stdout
-                System.out.print(s);
+                System.out.append(s,start,end);
                 break;
             case 3 : // Memory
                 if (!memMultiLine) { // Single-line mode--this is easy
-                    for (n = 0;n < s.length();n++)
-                        memory.putByte(curMemAddr+n,s.charAt(n));
-                    curMemAddr += s.length();
-                    memory.putWord(baseMemAddr,(memory.fetchWord(baseMemAddr) + s.length()));
+                    for (n = start;n < end;n++)
+                        memory.putByte(curMemAddr+n-start,s.charAt(n));
+                    curMemAddr += end - start;
+                    memory.putWord(baseMemAddr,(memory.fetchWord(baseMemAddr) + end - start));
                 }
                 else { // Multi-line mode.  Bleh.
-                    // First, make a StringTokenizer out of this string
-                    StringTokenizer st = new StringTokenizer(s,"\n ",true);
-                    while (st.hasMoreTokens()) {
-                        String tok = st.nextToken();
-                        if (tok.equals("\n")) { // Start a new line
+                    // Go through the text a token at a time.  Newlines and
+                    // spaces are tokens, and so is each run of other characters.
+                    i = start;
+                    while (i < end) {
+                        c = s.charAt(i);
+                        if (c == '\n') { // Start a new line
                             memory.putWord(curMemAddr,0);
                             baseMemAddr = curMemAddr;
                             curMemAddr += 2;
+                            i++;
+                            continue;
                         }
-                        else { // Add to this line, wrap if necessary
-                            if ((memCursorX + tok.length()) > (memWidth - 2)) { // Wrap
-                                memory.putWord(curMemAddr,0);
-                                baseMemAddr = curMemAddr;
-                                curMemAddr += 2;
-                            }
-                            for (n = 0;n < tok.length();n++)
-                                memory.putByte(curMemAddr+n,tok.charAt(n));
-                            curMemAddr += tok.length();
-                            memory.putWord(baseMemAddr,(memory.fetchWord(baseMemAddr) + tok.length()));
+                        j = i + 1;
+                        if (c != ' ') {
+                            while ((j < end) && (s.charAt(j) != ' ') && (s.charAt(j) != '\n'))
+                                j++;
+                        }
+
+                        // Add to this line, wrap if necessary
+                        if ((memCursorX + (j - i)) > (memWidth - 2)) { // Wrap
+                            memory.putWord(curMemAddr,0);
+                            baseMemAddr = curMemAddr;
+                            curMemAddr += 2;
                         }
+                        for (n = i;n < j;n++)
+                            memory.putByte(curMemAddr+n-i,s.charAt(n));
+                        curMemAddr += j - i;
+                        memory.putWord(baseMemAddr,(memory.fetchWord(baseMemAddr) + j - i));
+                        i = j;
                     }
                 }
                 break;
@@ -123,8 +171,8 @@ class ZIOCard extends Object {
 		if (outputBuffer.length() == 0)
 			return;
 
-		zui.showString(outputBuffer.toString());
-		outputBuffer = new StringBuffer();
+		zui.showString(outputBuffer);
+		outputBuffer.setLength(0);
 	}
 
     // Set output stream.
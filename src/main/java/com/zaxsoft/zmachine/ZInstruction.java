@@ -0,0 +1,51 @@
+/**
+ * Copyright (c) 2008 Matthew E. Kimmel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.zaxsoft.zmachine;
+
+/**
+ * A decoded Z-Machine instruction.  Everything about an instruction
+ * that doesn't depend on the machine state is worked out once, when the
+ * instruction is first executed, and kept in ZCPU's instruction cache;
+ * executing the instruction then only needs to fetch operand values.
+ *
+ * @author Matt Kimmel
+ */
+class ZInstruction {
+    // Operand kinds.  These match the encoding used in operand type bytes.
+    static final int WORD_CONSTANT = 0;
+    static final int BYTE_CONSTANT = 1;
+    static final int VARIABLE = 2;
+
+    // Variables
+    int instruction; // First byte of the instruction
+    int opcodeType; // Opcode type (one of ZCPU's OPTYPE constants)
+    int opcode; // Opcode (untyped instruction)
+    int numOperands; // Number of operands
+    byte[] operandKinds; // Kind of each operand
+    int[] operands; // Constant value or variable number of each operand
+    int result; // Result variable, or -1 if there is no <result> argument
+    int branch; // Branch offset; 0 and 1 mean return false and true
+    boolean branchReversed; // Branch logic reversed?
+    int stringAddr; // Address of the <string> argument, or 0 if there is none
+    int handler; // Index of the instruction's entry in ZCPU's dispatch table
+    int length; // Length of the whole instruction in bytes, including any string
+}
@@ -22,11 +22,62 @@
 package com.zaxsoft.zmachine;
 
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Iterator;
 
+// Memory accesses are not range-checked here; the array accesses
+// themselves throw IndexOutOfBoundsException on a bad address, and
+// ZCPU reports that as a memory fault.  This keeps the accessors small
+// enough to inline, and leaves the JIT only one check to make.
+//
+// Only dynamic memory belongs to this ZMachine.  Static and high
+// memory can't be changed by the story, so they are read from a story
+// image that is loaded once and shared by every ZMachine running the
+// same story-file.  A write beyond dynamic memory runs off the end of
+// the last page and is reported as a memory fault like any other.
+//
+// Dynamic memory is kept in pages of PAGE_SIZE bytes (the last may be
+// shorter).  A snapshot of it just shares the pages, which are then
+// copied one at a time as they are written, so taking or restoring a
+// snapshot costs almost nothing however large dynamic memory is.
 class ZMemory extends Object {
+    static final int PAGE_SHIFT = 8;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // Big-endian view of pairs of bytes in a byte array, for word accesses
+    private static final VarHandle WORD =
+        MethodHandles.byteArrayViewVarHandle(short[].class,ByteOrder.BIG_ENDIAN);
+
+    // Story images already loaded, keyed by file name, size and date.
+    // They are held weakly, so an image is freed once no ZMemory is
+    // using it.
+    private static final Hashtable<String,WeakReference<byte[]>> images = new Hashtable<String,WeakReference<byte[]>>();
+
     private ZUserInterface zui;
-    byte[] data;
+    private byte[][] pages; // Dynamic memory
+    private boolean[] shared; // Pages that may belong to a snapshot too
+    private byte[] image; // The whole story-file, as loaded; shared
+    private int dynamicLength; // Length of dynamic memory
     int dataLength;
+    int codeLow; // Lowest address covered by a cached decoded instruction
+    boolean codeModified; // Set when memory at or above codeLow is written
+    int textLow; // Lowest address of a watched abbreviation byte
+    int textHigh; // Address just past the highest one
+    private byte[] textBytes; // A bit for each byte of dynamic memory, set if it is watched
+    boolean textModified; // Set when a watched abbreviation byte is written
+    int propLow; // Lowest address of a watched property table byte
+    int propHigh; // Address just past the highest one
+    private byte[] propHeaders; // A bit for each byte of dynamic memory, set if it is watched
+    boolean propModified; // Set when a watched property table byte is written
+    int entryLow; // Lowest address of the object entries ZObjectTable mirrors
+    int entryHigh; // Address just past them
+    boolean entriesModified; // Set when memory between entryLow and entryHigh is written, other than quietly
 
     // The initialize routine sets things up and loads a game
     // into memory.  It is passed the ZUserInterface object
@@ -34,74 +85,355 @@ class ZMemory extends Object {
     void initialize(ZUserInterface ui,String storyFile)
     {
         File f;
-        FileInputStream fis;
-        DataInputStream dis;
+        int npages;
         zui = ui;
+        codeLow = Integer.MAX_VALUE;
+        codeModified = false;
+        textLow = Integer.MAX_VALUE;
+        textHigh = 0;
+        textModified = false;
 
-        // Read in the story file
+        // Get the story image, then make this ZMachine's own copy of
+        // dynamic memory, which ends where static memory starts.
         f = new File(storyFile);
         if((!f.exists()) || (!f.canRead()) || (!f.isFile()))
             zui.fatal("Storyfile " + storyFile + " not found.");
-        dataLength = (int)f.length();
-        data = new byte[dataLength];
+        image = loadImage(f);
+        if (image == null) {
+            zui.fatal("I/O error loading storyfile.");
+            return;
+        }
+        dataLength = image.length;
+        dynamicLength = 64;
+        if (dataLength > 0x0f)
+            dynamicLength = Math.max(dynamicLength,(((image[0x0e] & 0xff) << 8) | (image[0x0f] & 0xff)));
+        dynamicLength = Math.min(dynamicLength,dataLength);
+        npages = (dynamicLength + PAGE_MASK) >> PAGE_SHIFT;
+        pages = new byte[npages][];
+        for (int i = 0;i < npages;i++)
+            pages[i] = Arrays.copyOfRange(image,i << PAGE_SHIFT,Math.min((i + 1) << PAGE_SHIFT,dynamicLength));
+        shared = new boolean[npages];
+        propHeaders = new byte[(dynamicLength >> 3) + 1];
+        textBytes = new byte[(dynamicLength >> 3) + 1];
+        propLow = Integer.MAX_VALUE;
+        propHigh = 0;
+        propModified = false;
+        entryLow = Integer.MAX_VALUE;
+        entryHigh = 0;
+        entriesModified = false;
+    }
+
+    // Return the image of the given story-file, reading it in if no
+    // ZMachine has done so yet.  Return null on an I/O error.
+    private static synchronized byte[] loadImage(File f)
+    {
+        String key;
+        WeakReference<byte[]> ref;
+        byte[] img;
+        DataInputStream dis;
+
+        // Forget images that have been freed.
+        for (Iterator<WeakReference<byte[]>> it = images.values().iterator();it.hasNext();)
+            if (it.next().get() == null)
+                it.remove();
+
         try {
-            fis = new FileInputStream(f);
-            dis = new DataInputStream(fis);
-            dis.readFully(data,0,dataLength);
-            fis.close();
+            key = f.getCanonicalPath() + ":" + f.length() + ":" + f.lastModified();
+            ref = images.get(key);
+            img = (ref != null) ? ref.get() : null;
+            if (img != null)
+                return img;
+            img = new byte[(int)f.length()];
+            dis = new DataInputStream(new FileInputStream(f));
+            try {
+                dis.readFully(img,0,img.length);
+            }
+            finally {
+                dis.close();
+            }
         }
         catch (IOException ioex) {
-            zui.fatal("I/O error loading storyfile.");
+            return null;
         }
+        images.put(key,new WeakReference<byte[]>(img));
+        return img;
     }
 
     // Fetch a byte from the specified address
     int fetchByte(int addr)
     {
-        if (addr > (dataLength - 1))
-            zui.fatal("Memory fault: address " + addr);
-        int i = (data[addr] & 0xff);
-        return i;
+        if (addr < dynamicLength)
+            return (pages[addr >> PAGE_SHIFT][addr & PAGE_MASK] & 0xff);
+        return (image[addr] & 0xff);
     }
 
     // Store a byte at the specified address
     void putByte(int addr,int b)
     {
-        if (addr > (dataLength - 1))
-            zui.fatal("Memory fault: address " + addr);
-        data[addr] = (byte)(b & 0xff);
+        int n = addr >> PAGE_SHIFT;
+
+        if (shared[n])
+            copyPage(n);
+        pages[n][addr & PAGE_MASK] = (byte)(b & 0xff);
+        if (addr >= codeLow)
+            codeModified = true;
+        if ((addr < textHigh) && (addr >= textLow) && isText(addr))
+            textModified = true;
+        if ((addr < propHigh) && (addr >= propLow) && isPropHeader(addr))
+            propModified = true;
+        if ((addr < entryHigh) && (addr >= entryLow))
+            entriesModified = true;
     }
 
     // Fetch a word from the specified address
     int fetchWord(int addr)
     {
-        int i;
-
-        if (addr > (dataLength - 1))
-            zui.fatal("Memory fault: address " + addr);
-        i = (((data[addr] << 8) | (data[addr+1] & 0xff)) & 0xffff);
-        return i;
+        if (addr >= dynamicLength)
+            return ((short)WORD.get(image,addr) & 0xffff);
+        if (((addr & PAGE_MASK) == PAGE_MASK) || (addr == (dynamicLength - 1)))
+            return ((fetchByte(addr) << 8) | fetchByte(addr + 1)); // Straddles a page
+        return ((short)WORD.get(pages[addr >> PAGE_SHIFT],addr & PAGE_MASK) & 0xffff);
     }
 
     // Store a word at the specified address
     void putWord(int addr,int w)
     {
-        if (addr > (dataLength - 1))
-            zui.fatal("Memory fault: address " + addr);
-        data[addr] = (byte)((w >> 8) & 0xff);
-        data[addr+1] = (byte)(w & 0xff);
+        int n = addr >> PAGE_SHIFT;
+
+        if ((addr & PAGE_MASK) == PAGE_MASK) { // Straddles a page
+            putByte(addr,w >> 8);
+            putByte(addr + 1,w);
+            return;
+        }
+        if (shared[n])
+            copyPage(n);
+        WORD.set(pages[n],addr & PAGE_MASK,(short)w);
+        if ((addr + 1) >= codeLow)
+            codeModified = true;
+        if ((addr < textHigh) && ((addr + 1) >= textLow) && (isText(addr) || isText(addr + 1)))
+            textModified = true;
+        if ((addr < propHigh) && ((addr + 1) >= propLow) && (isPropHeader(addr) || isPropHeader(addr + 1)))
+            propModified = true;
+        if ((addr < entryHigh) && ((addr + 1) >= entryLow))
+            entriesModified = true;
+    }
+
+    // Store a byte or a word without setting entriesModified.  ZObjectTable
+    // uses these for its own changes to object entries, which it has
+    // already made in its mirror of them.
+    void putByteQuietly(int addr,int b)
+    {
+        boolean m = entriesModified;
+
+        putByte(addr,b);
+        entriesModified = m;
+    }
+
+    void putWordQuietly(int addr,int w)
+    {
+        boolean m = entriesModified;
+
+        putWord(addr,w);
+        entriesModified = m;
+    }
+
+    // Watch the byte at addr, which describes the layout of a property
+    // table, so that writing it sets propModified.  Bytes outside
+    // dynamic memory can't be written, so they are ignored.
+    void watchPropHeader(int addr)
+    {
+        if (addr >= dynamicLength)
+            return;
+        propHeaders[addr >> 3] |= (1 << (addr & 7));
+        propLow = Math.min(propLow,addr);
+        propHigh = Math.max(propHigh,addr + 1);
+    }
+
+    // Stop watching all property table bytes.
+    void clearPropHeaders()
+    {
+        Arrays.fill(propHeaders,(byte)0);
+        propLow = Integer.MAX_VALUE;
+        propHigh = 0;
+        propModified = false;
+    }
+
+    // Watch the len bytes at addr, which hold abbreviations or their
+    // table, so that writing them sets textModified.  Only the bytes in
+    // dynamic memory are watched, since the rest can't be written.
+    void watchText(int addr,int len)
+    {
+        for (int a = addr;(a < addr + len) && (a < dynamicLength);a++) {
+            textBytes[a >> 3] |= (1 << (a & 7));
+            textLow = Math.min(textLow,a);
+            textHigh = Math.max(textHigh,a + 1);
+        }
+    }
+
+    // Stop watching all abbreviation bytes.
+    void clearText()
+    {
+        Arrays.fill(textBytes,(byte)0);
+        textLow = Integer.MAX_VALUE;
+        textHigh = 0;
+        textModified = false;
+    }
+
+    // Return true if the byte at addr is a watched abbreviation byte.
+    private boolean isText(int addr)
+    {
+        return ((textBytes[addr >> 3] & (1 << (addr & 7))) != 0);
+    }
+
+    // Return true if the byte at addr is a watched property table byte.
+    private boolean isPropHeader(int addr)
+    {
+        return ((propHeaders[addr >> 3] & (1 << (addr & 7))) != 0);
+    }
+
+    // Give this ZMemory its own copy of page n, which it shares with
+    // a snapshot.
+    private void copyPage(int n)
+    {
+        pages[n] = pages[n].clone();
+        shared[n] = false;
+    }
+
+    // Return a snapshot of dynamic memory.  The snapshot shares its
+    // pages with this ZMemory until they are written.
+    byte[][] snapshot()
+    {
+        Arrays.fill(shared,true);
+        return pages.clone();
+    }
+
+    // Set dynamic memory to the contents of a snapshot.  The snapshot
+    // stays valid, and can be restored again.
+    void restore(byte[][] snapshot)
+    {
+        pages = snapshot.clone();
+        Arrays.fill(shared,true);
+        if (codeLow < dynamicLength)
+            codeModified = true;
+        if (textLow < dynamicLength)
+            textModified = true;
+        if (propLow < dynamicLength)
+            propModified = true;
+        if (entryLow < dynamicLength)
+            entriesModified = true;
+    }
+
+    // Return dynamic memory compressed as in a Quetzal CMem chunk:
+    // XORed with the story-file as it was loaded, with each run of
+    // zero bytes written as a zero followed by the length of the run
+    // less one, and any zeros at the end left off.
+    byte[] compress()
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(1024);
+        int zeros = 0;
+        int b;
+
+        for (int addr = 0;addr < dynamicLength;addr++) {
+            b = (pages[addr >> PAGE_SHIFT][addr & PAGE_MASK] ^ image[addr]) & 0xff;
+            if (b == 0) {
+                zeros++;
+                continue;
+            }
+            while (zeros > 0) {
+                bos.write(0);
+                bos.write(Math.min(zeros,256) - 1);
+                zeros -= Math.min(zeros,256);
+            }
+            bos.write(b);
+        }
+        return bos.toByteArray();
+    }
+
+    // Check that len bytes at off in buf are a valid CMem chunk (see
+    // compress()) for this story-file, and if so, return the dynamic
+    // memory they describe; otherwise return null.
+    byte[] decompress(byte[] buf,int off,int len)
+    {
+        byte[] mem = Arrays.copyOf(image,dynamicLength);
+        int addr = 0;
+        int end = off + len;
+        int b;
+
+        while (off < end) {
+            b = buf[off++];
+            if (b == 0) {
+                if (off == end)
+                    return null;
+                addr += (buf[off++] & 0xff) + 1;
+            }
+            else {
+                if (addr >= dynamicLength)
+                    return null;
+                mem[addr++] ^= b;
+            }
+        }
+        if (addr > dynamicLength)
+            return null;
+        return mem;
+    }
+
+    // Set all of dynamic memory from mem.
+    void load(byte[] mem)
+    {
+        for (int i = 0;i < pages.length;i++) {
+            pages[i] = Arrays.copyOfRange(mem,i << PAGE_SHIFT,Math.min((i + 1) << PAGE_SHIFT,dynamicLength));
+            shared[i] = false;
+        }
+        if (codeLow < dynamicLength)
+            codeModified = true;
+        if (textLow < dynamicLength)
+            textModified = true;
+        if (propLow < dynamicLength)
+            propModified = true;
+        if (entryLow < dynamicLength)
+            entriesModified = true;
     }
 
 	// Dump the specified amount of memory, starting at the specified address,
 	// to the specified DataOutputStream.
 	void dumpMemory(DataOutputStream dos,int addr,int len) throws IOException
 	{
-		dos.write(data,addr,len);
+		int n;
+
+		while (len > 0) {
+			if (addr >= dynamicLength) {
+				dos.write(image,addr,len);
+				return;
+			}
+			n = Math.min(len,pages[addr >> PAGE_SHIFT].length - (addr & PAGE_MASK));
+			dos.write(pages[addr >> PAGE_SHIFT],addr & PAGE_MASK,n);
+			addr += n;
+			len -= n;
+		}
 	}
 
 	// Read in memory stored by dumpMemory.
 	void readMemory(DataInputStream dis,int addr,int len) throws IOException
 	{
-		dis.read(data,addr,len);
+		int n;
+
+		if ((addr + len) > codeLow)
+			codeModified = true;
+		if ((addr < textHigh) && ((addr + len) > textLow))
+			textModified = true;
+		if ((addr < propHigh) && ((addr + len) > propLow))
+			propModified = true;
+		if ((addr < entryHigh) && ((addr + len) > entryLow))
+			entriesModified = true;
+		while (len > 0) {
+			if (addr >= dynamicLength)
+				throw new IndexOutOfBoundsException("Address " + addr + " is not in dynamic memory");
+			if (shared[addr >> PAGE_SHIFT])
+				copyPage(addr >> PAGE_SHIFT);
+			n = Math.min(len,pages[addr >> PAGE_SHIFT].length - (addr & PAGE_MASK));
+			dis.readFully(pages[addr >> PAGE_SHIFT],addr & PAGE_MASK,n);
+			addr += n;
+			len -= n;
+		}
 	}
 }
@@ -21,21 +21,62 @@
  */
 package com.zaxsoft.zmachine;
 
+import java.util.Arrays;
+
 /**
  * ZObjectTable - Encapsulation of the Z-Machine object table.
  *
+ * The layout of an object entry depends on the version: V1-3 objects
+ * have 1-byte parent, sibling and child handles, and V4+ objects have
+ * 2-byte ones.  ZObjectTableV3 and ZObjectTableV4 supply the accessors
+ * for each, so that walking the object tree doesn't keep checking the
+ * version; ZCPU makes the right one when it loads a story.
+ *
  * @author Matt Kimmel
  */
-class ZObjectTable extends Object {
+abstract class ZObjectTable extends Object {
     // Local variables
-    private ZUserInterface zui; // User interface object
-    private ZMemory memory; // This Z-Machine's memory object
-    private int version; // Version number of current storyfile
-    private int objTable; // Address of object table
-    private int defaultsSize; // Size of property default table, in bytes
-    private int objAttrSize; // Size of an object's attribute table, in bytes
-    private int objHandleSize; // Size of an object handle, in bytes
-    private int objEntrySize; // Size of an object entry in the table
+    ZUserInterface zui; // User interface object
+    ZMemory memory; // This Z-Machine's memory object
+    int version; // Version number of current storyfile
+    int objTable; // Address of object table
+    int defaultsSize; // Size of property default table, in bytes
+    int objAttrSize; // Size of an object's attribute table, in bytes
+    int objHandleSize; // Size of an object handle, in bytes
+    int objEntrySize; // Size of an object entry in the table
+
+    // Addresses of the fields of object 0's entry, if there were one;
+    // object n's fields are n * objEntrySize bytes on.
+    int attrBase; // Attributes (the start of the entry)
+    int parentBase; // Parent
+    int siblingBase; // Sibling
+    int childBase; // First child
+    int propBase; // Property list address
+
+    int maxProperty; // Highest property number: 31 in V1-3, 63 in V4+
+    private int[][] propIndex; // Property index of each object; see getPropertyIndex()
+    int numObjects; // Number of objects whose entries are mirrored
+    private long[] attributes; // Mirror of their attributes; see mirrorEntries()
+    boolean keepPredecessors; // Set to keep predecessors[], before initialize()
+    private int[] predecessors; // Previous sibling of each of them, or 0; see removeObject()
+
+    // The constructor is passed the sizes of the property defaults
+    // table, of an object's attributes and of an object handle.
+    ZObjectTable(int defaultsSize,int objAttrSize,int objHandleSize)
+    {
+        this.defaultsSize = defaultsSize;
+        this.objAttrSize = objAttrSize;
+        this.objHandleSize = objHandleSize;
+        objEntrySize = (objAttrSize + (3 * objHandleSize) + 2);
+    }
+
+    // Return a new object table of the right kind for the given version.
+    static ZObjectTable create(int version)
+    {
+        if (version <= 3)
+            return new ZObjectTableV3();
+        return new ZObjectTableV4();
+    }
 
     // The initialize routine passes a handle to the Z-Machine's
     // memory, as well as to the user interface and to the version
@@ -47,17 +88,15 @@ class ZObjectTable extends Object {
         version = ver;
 
         objTable = memory.fetchWord(0x0a);
-        if (version <= 3) {
-            defaultsSize = 62;
-            objAttrSize = 4;
-            objHandleSize = 1;
-        }
-        else {
-            defaultsSize = 126;
-            objAttrSize = 6;
-            objHandleSize = 2;
-        }
-        objEntrySize = (objAttrSize + (3 * objHandleSize) + 2);
+        attrBase = objTable + defaultsSize - objEntrySize;
+        parentBase = attrBase + objAttrSize;
+        siblingBase = parentBase + objHandleSize;
+        childBase = siblingBase + objHandleSize;
+        propBase = childBase + objHandleSize;
+
+        maxProperty = (version <= 3) ? 31 : 63;
+        propIndex = new int[256][];
+        mirrorEntries();
     }
 
     /////////////////////////////////////////////////////////////////
@@ -65,70 +104,22 @@ class ZObjectTable extends Object {
     /////////////////////////////////////////////////////////////////
 
     // Return the sibling of an object
-    int getSibling(int obj)
-    {
-        int sib;
-
-        if (version <= 3)
-            sib = memory.fetchByte(objTable + defaultsSize + ((obj - 1) * objEntrySize) + objAttrSize + objHandleSize);
-        else
-            sib = memory.fetchWord(objTable + defaultsSize + ((obj - 1) * objEntrySize) + objAttrSize + objHandleSize);
-
-        return sib;
-    }
+    abstract int getSibling(int obj);
 
     // Set the sibling of an object
-    void setSibling(int obj,int sib)
-    {
-        if (version <= 3)
-            memory.putByte((objTable + defaultsSize + ((obj - 1) * objEntrySize) + objAttrSize + objHandleSize),sib);
-        else
-            memory.putWord((objTable + defaultsSize + ((obj - 1) * objEntrySize) + objAttrSize + objHandleSize),sib);
-    }
+    abstract void setSibling(int obj,int sib);
 
     // Return the first child of an object
-    int getChild(int obj)
-    {
-        int child;
-
-        if (version <= 3)
-            child = memory.fetchByte(objTable + defaultsSize + ((obj - 1) * objEntrySize) + objAttrSize + (2 * objHandleSize));
-        else
-            child = memory.fetchWord(objTable + defaultsSize + ((obj - 1) * objEntrySize) + objAttrSize + (2 * objHandleSize));
-
-        return child;
-    }
+    abstract int getChild(int obj);
 
     // Set the child of an object
-    void setChild(int obj,int child)
-    {
-        if (version <= 3)
-            memory.putByte((objTable + defaultsSize + ((obj - 1) * objEntrySize) + objAttrSize + (2 * objHandleSize)),child);
-        else
-            memory.putWord((objTable + defaultsSize + ((obj - 1) * objEntrySize) + objAttrSize + (2 * objHandleSize)),child);
-    }
+    abstract void setChild(int obj,int child);
 
     // Return an object's parent
-    int getParent(int obj)
-    {
-        int parent;
-
-        if (version <= 3)
-            parent = memory.fetchByte(objTable + defaultsSize + ((obj - 1) * objEntrySize) + objAttrSize);
-        else
-            parent = memory.fetchWord(objTable + defaultsSize + ((obj - 1) * objEntrySize) + objAttrSize);
-
-        return parent;
-    }
+    abstract int getParent(int obj);
 
     // Set the parent of an object
-    void setParent(int obj,int parent)
-    {
-        if (version <= 3)
-            memory.putByte((objTable + defaultsSize + ((obj - 1) * objEntrySize) + objAttrSize),parent);
-        else
-            memory.putWord((objTable + defaultsSize + ((obj - 1) * objEntrySize) + objAttrSize),parent);
-    }
+    abstract void setParent(int obj,int parent);
 
     // Given its (non-zero) parent, remove an object from the
     // sibling chain.
@@ -140,33 +131,42 @@ class ZObjectTable extends Object {
 		if (parent == 0)
 			return;
 
+        if (memory.entriesModified)
+            readEntries();
         curObj = getChild(parent);
         if (curObj == 0)
             zui.fatal("Corrupted object table");
         if (curObj == obj) {
             // Remove the object
             setChild(parent,getSibling(obj));
+            setPredecessor(getSibling(obj),0);
 			setSibling(obj,0);
 			setParent(obj,0);
             return;
         }
 
-        // Traverse the sibling chain until we find the object
-        // and its predecessor.
-        prevObj = curObj;
-        curObj = getSibling(prevObj);
-        while ((curObj != obj) && (curObj != 0)) {
+        // If predecessors[] is kept, it names the object's predecessor;
+        // otherwise, or if it doesn't match the table, traverse the
+        // sibling chain until we find the object and its predecessor.
+        prevObj = getPredecessor(obj);
+        if ((prevObj == 0) || (getSibling(prevObj) != obj)) {
             prevObj = curObj;
             curObj = getSibling(prevObj);
-        }
+            while ((curObj != obj) && (curObj != 0)) {
+                prevObj = curObj;
+                curObj = getSibling(prevObj);
+            }
 
-        // If we get here, curObj is either the object we're looking
-        // for or 0 (which is an error).
-        if (curObj == 0)
-            zui.fatal("Corrupted object table");
+            // If we get here, curObj is either the object we're looking
+            // for or 0 (which is an error).
+            if (curObj == 0)
+                zui.fatal("Corrupted object table");
+        }
 
         // Remove the object from the chain, and set its sibling and parent to 0.
-        setSibling(prevObj,getSibling(curObj));
+        setSibling(prevObj,getSibling(obj));
+        setPredecessor(getSibling(obj),prevObj);
+        setPredecessor(obj,0);
         setSibling(obj,0); // Is this necessary?
 		setParent(obj,0);
     }
@@ -180,6 +180,8 @@ class ZObjectTable extends Object {
 
         // First, remove the given object from its current
         // position (if any).
+        if (memory.entriesModified)
+            readEntries();
         oldparent = getParent(obj1);
         if (oldparent > 0)
             removeObject(oldparent,obj1);
@@ -187,10 +189,29 @@ class ZObjectTable extends Object {
         // Now insert it.
         oldfirst = getChild(obj2);
         setSibling(obj1,oldfirst);
+        setPredecessor(oldfirst,obj1);
+        setPredecessor(obj1,0);
         setChild(obj2,obj1);
 		setParent(obj1,obj2);
     }
 
+    // Return an object's previous sibling from predecessors[], or 0 if
+    // it isn't kept there.
+    private int getPredecessor(int obj)
+    {
+        if ((predecessors != null) && (obj > 0) && (obj <= numObjects))
+            return predecessors[obj];
+        return 0;
+    }
+
+    // Record an object's previous sibling in predecessors[], if it is
+    // kept there.
+    private void setPredecessor(int obj,int prev)
+    {
+        if ((predecessors != null) && (obj > 0) && (obj <= numObjects))
+            predecessors[obj] = prev;
+    }
+
     //////////////////////////////////////////////////////////////
     // Property manipulation routines
     //////////////////////////////////////////////////////////////
@@ -219,31 +240,63 @@ class ZObjectTable extends Object {
     {
         int addr;
 
-        addr = memory.fetchWord(objTable + defaultsSize + ((obj - 1) * objEntrySize) + objAttrSize + (3 * objHandleSize));
+        addr = memory.fetchWord(propBase + (obj * objEntrySize));
         return addr;
     }
 
-    // Get the address of the specified property of the specified
-    // object.  Return 0x0000 if there is no such property.
-    int getPropertyAddress(int obj,int prop)
+    // Return obj's property index, building it if need be.  Entry n
+    // describes the first property numbered n in the list: its data
+    // address, shifted left by 14, ORed with the number of the
+    // property after it, shifted left by 7, and its length.  It is 0
+    // if there is no such property.  The last entry holds the number
+    // of the first property, shifted left by 7.
+    //
+    // Property tables are laid out when the story is written, and only
+    // their values change, so an index stays good until the story
+    // writes one of the bytes it was built from; ZMemory watches
+    // those, and the whole index is thrown away if one is written.
+    private int[] getPropertyIndex(int obj)
     {
+        int[] index;
+
+        if (memory.propModified) {
+            Arrays.fill(propIndex,null);
+            memory.clearPropHeaders();
+        }
+        if (obj >= propIndex.length)
+            propIndex = Arrays.copyOf(propIndex,obj + 64);
+        else if ((obj >= 0) && (propIndex[obj] != null))
+            return propIndex[obj];
+        index = buildPropertyIndex(obj);
+        if (obj >= 0)
+            propIndex[obj] = index;
+        return index;
+    }
+
+    // Walk obj's property list to build its property index, and have
+    // ZMemory watch the bytes that lay the list out.
+    private int[] buildPropertyIndex(int obj)
+    {
+        int[] index = new int[maxProperty + 2];
         int p;
         int s;
-		int o;
         int pnum;
         int psize;
-
-        // First, get the address of the property table for this
-        // object.
-        p = getPropertyList(obj);
-
-        // Now step through, looking for the specified property.
-        // Start by jumping over text header.
-		o = memory.fetchByte(p);
-        p = p + (o * 2) + 1;
-
-        // Now we're at the start of the property table.
+        int prev; // Entry of the previous property, or -1 if it was a repeat
+
+        // The object's pointer to its property table, and the length
+        // of the text header
+        p = propBase + (obj * objEntrySize);
+        memory.watchPropHeader(p);
+        memory.watchPropHeader(p + 1);
+        p = memory.fetchWord(p);
+        memory.watchPropHeader(p);
+        p = p + (memory.fetchByte(p) * 2) + 1;
+
+        // Now step through the properties.
+        prev = maxProperty + 1;
         s = memory.fetchByte(p);
+        memory.watchPropHeader(p);
         while (s != 0) {
             // Get the property number and the size of this property.
             if (version < 4) {
@@ -254,6 +307,7 @@ class ZObjectTable extends Object {
                 pnum = (s & 0x3f);
                 if ((s & 0x80) == 0x80) {
                     p++;
+                    memory.watchPropHeader(p);
                     psize = memory.fetchByte(p);
                     psize = psize & 0x3f;
                 }
@@ -264,36 +318,50 @@ class ZObjectTable extends Object {
             // Step over the size byte
             p++;
 
-            // If this is the correct property, return its address;
-            // otherwise, step over the property and loop.
-            if (pnum == prop)
-                return p;
+            // Record the property, unless an earlier one had the same number.
+            if (prev >= 0)
+                index[prev] |= (pnum << 7);
+            if (index[pnum] == 0) {
+                index[pnum] = (p << 14) | psize;
+                prev = pnum;
+            }
             else
-                p = p + psize;
-			s = memory.fetchByte(p);
+                prev = -1;
+            p = p + psize;
+            s = memory.fetchByte(p);
+            memory.watchPropHeader(p);
         }
+        return index;
+    }
 
-        // If we make it here, the property was not found.
-        return 0;
+    // Get the address of the specified property of the specified
+    // object.  Return 0x0000 if there is no such property.
+    int getPropertyAddress(int obj,int prop)
+    {
+        if ((prop < 0) || (prop > maxProperty))
+            return 0;
+        return (getPropertyIndex(obj)[prop] >>> 14);
     }
 
     // Get the first byte or word of a property--use the default
     // property if this one doesn't exist.
     int getProperty(int obj,int prop)
     {
-        int pdata;
+        int entry;
 
-        // Attempt to get the address of this property for this
-        // object.
-        pdata = getPropertyAddress(obj,prop);
+        // Attempt to find this property for this object.
+        if ((prop < 0) || (prop > maxProperty))
+            entry = 0;
+        else
+            entry = getPropertyIndex(obj)[prop];
 
         // If the property exists, return it; otherwise, return
         // the appropriate value from the defaults table.
-        if (pdata > 0) {
-            if (getPropertyLength(pdata) == 1)
-                return memory.fetchByte(pdata);
+        if (entry != 0) {
+            if ((entry & 0x7f) == 1)
+                return memory.fetchByte(entry >>> 14);
             else
-                return memory.fetchWord(pdata);
+                return memory.fetchWord(entry >>> 14);
         }
         else
             return memory.fetchWord(objTable + ((prop - 1) * 2));
@@ -301,47 +369,15 @@ class ZObjectTable extends Object {
 
     // Return the property number of the property that follows
     // the specified property in the property list, or 0 if
-    // the specified property doesn't exist.
+    // the specified property doesn't exist.  If the property
+    // number is 0, return the number of the first property.
     int getNextProperty(int obj,int prop)
     {
-        int propaddr;
-        int proplen;
-        int propnum;
-
-        // First, if the property number is 0, just return the
-        // number of the first property of this object.
-        if (prop == 0) {
-            propaddr = getPropertyList(obj);
-            // Skip over text-length byte and text header
-            propaddr = propaddr + 1 + (memory.fetchByte(propaddr) * 2);
-            // Return the number of the first property.
-            // This will work if the property number is 0, too.
-            if (version < 4)
-                propnum = memory.fetchByte(propaddr) & 0x1f;
-            else
-                propnum = memory.fetchByte(propaddr) & 0x3f;
-            return propnum;
-        }
-
-        // First, get the address of the specified property.
-        // If it doesn't exist, return 0.
-        propaddr = getPropertyAddress(obj,prop);
-        if (propaddr == 0)
+        if ((prop < 0) || (prop > maxProperty))
             return 0;
-
-        // Now find out its length.
-        proplen = getPropertyLength(propaddr);
-
-        // Skip over the property data
-        propaddr += proplen;
-
-        // Now return the number of the next property.  This will
-        // return 0 if the property is a 0 byte.
-        if (version < 4)
-            propnum = memory.fetchByte(propaddr) & 0x1f;
-        else
-            propnum = memory.fetchByte(propaddr) & 0x3f;
-        return propnum;
+        if (prop == 0)
+            prop = maxProperty + 1;
+        return ((getPropertyIndex(obj)[prop] >> 7) & 0x3f);
     }
 
     // Return the address of the Z-String containing the specified
@@ -358,17 +394,21 @@ class ZObjectTable extends Object {
     // specified object.
     void putProperty(int obj,int prop,int value)
     {
+        int entry;
         int propaddr;
         int proplen;
 
-        // First, get the address of this property.  Fail silently
-        // if the property does not exist.
-        propaddr = getPropertyAddress(obj,prop);
-        if (propaddr == 0)
+        // First, find this property.  Fail silently if the property
+        // does not exist.
+        if ((prop < 0) || (prop > maxProperty))
+            return;
+        entry = getPropertyIndex(obj)[prop];
+        if (entry == 0)
             return;
 
         // Now set the property, depending on its length.
-        proplen = getPropertyLength(propaddr);
+        propaddr = entry >>> 14;
+        proplen = entry & 0x7f;
         if (proplen == 1)
             memory.putByte(propaddr,(value & 0xff));
         else
@@ -380,73 +420,119 @@ class ZObjectTable extends Object {
     // Attribute manipulation routines
     //////////////////////////////////////////////////////////////
 
+    // The attributes of objects 1 to numObjects are mirrored in
+    // attributes[], one long per object, with attribute 0 in the top
+    // bit, as they are laid out in memory; if keepPredecessors is set,
+    // their previous siblings are kept in predecessors[] as well.
+    // Changes made here are written through to memory.  ZMemory notes
+    // any other write to the object entries, such as a RESTORE, and
+    // both are then read in again.  Objects past numObjects, and
+    // attribute numbers too big for the version, are looked up in
+    // memory.
+
+    // Count the objects, whose entries run up to the lowest of their
+    // property tables, and read in their entries.
+    private void mirrorEntries()
+    {
+        int lowest = memory.dataLength;
+        int max = (version <= 3) ? 255 : 65535;
+        int obj;
+
+        for (obj = 1;(obj <= max) && ((attrBase + ((obj + 1) * objEntrySize)) <= lowest);obj++)
+            lowest = Math.min(lowest,memory.fetchWord(propBase + (obj * objEntrySize)));
+        numObjects = obj - 1;
+        attributes = new long[numObjects + 1];
+        if (keepPredecessors)
+            predecessors = new int[numObjects + 1];
+        memory.entryLow = attrBase + objEntrySize;
+        memory.entryHigh = attrBase + ((numObjects + 1) * objEntrySize);
+        readEntries();
+    }
+
+    // Read the mirrored attributes, and the predecessors if they are
+    // kept, in from memory.
+    private void readEntries()
+    {
+        int addr;
+        long a;
+
+        for (int obj = 1;obj <= numObjects;obj++) {
+            addr = attrBase + (obj * objEntrySize);
+            a = 0;
+            for (int i = 0;i < objAttrSize;i++)
+                a |= ((long)memory.fetchByte(addr + i)) << (56 - (i * 8));
+            attributes[obj] = a;
+        }
+        if (predecessors != null) {
+            Arrays.fill(predecessors,0);
+            for (int obj = 1;obj <= numObjects;obj++)
+                setPredecessor(getSibling(obj),obj);
+        }
+        memory.entriesModified = false;
+    }
+
     // Return true if the specified object has the specified
     // attribute; otherwise return false.
     boolean hasAttribute(int obj,int attr)
     {
-        int whichbyte;
-        int whichbit;
-        int bitmask;
-        int attrbyte;
-
-        // First, figure out which byte and bit we're looking at.
-        whichbyte = attr / 8;
-        whichbit = attr % 8;
-
-        // Flip the bit number around to something we can use in
-        // an AND.
-        bitmask = 0x80 >>> whichbit;
-
-        // Now get the appropriate byte and test it.
-        attrbyte = memory.fetchByte(objTable + defaultsSize + ((obj - 1) * objEntrySize) + (whichbyte));
-        if ((attrbyte & bitmask) == bitmask)
-            return true;
-        else
-            return false;
+        if (memory.entriesModified)
+            readEntries();
+        if ((obj > 0) && (obj <= numObjects) && (attr < (objAttrSize * 8)))
+            return ((attributes[obj] & (Long.MIN_VALUE >>> attr)) != 0);
+        return ((memory.fetchByte(attrBase + (obj * objEntrySize) + (attr / 8)) & (0x80 >>> (attr % 8))) != 0);
     }
 
     // Set an attribute on an object.
     void setAttribute(int obj,int attr)
     {
-        int whichbyte;
-        int whichbit;
-        int bitmask;
-        int attrbyte;
-
-        // First, figure out which byte and bit we're looking at.
-        whichbyte = attr / 8;
-        whichbit = attr % 8;
-
-        // Flip the bit number around to something we can use in
-        // an OR.
-        bitmask = 0x80 >>> whichbit;
-
-        // Now get the appropriate byte and set it.
-        attrbyte = memory.fetchByte(objTable + defaultsSize + ((obj - 1) * objEntrySize) + (whichbyte));
-        attrbyte = attrbyte | bitmask;
-        memory.putByte((objTable + defaultsSize + ((obj - 1) * objEntrySize) + (whichbyte)),attrbyte);
+        int addr = attrBase + (obj * objEntrySize) + (attr / 8);
+
+        if (memory.entriesModified)
+            readEntries();
+        if ((obj > 0) && (obj <= numObjects) && (attr < (objAttrSize * 8))) {
+            attributes[obj] |= (Long.MIN_VALUE >>> attr);
+            memory.putByteQuietly(addr,memory.fetchByte(addr) | (0x80 >>> (attr % 8)));
+        }
+        else
+            memory.putByte(addr,memory.fetchByte(addr) | (0x80 >>> (attr % 8)));
     }
 
     // Clear an attribute on an object.
     void clearAttribute(int obj,int attr)
     {
-        int whichbyte;
-        int whichbit;
-        int bitmask;
-        int attrbyte;
-
-        // First, figure out which byte and bit we're looking at.
-        whichbyte = attr / 8;
-        whichbit = attr % 8;
-
-        // Flip the bit number around to something we can use in
-        // a NOT.
-        bitmask = 0x80 >>> whichbit;
-
-        // Now get the appropriate byte and clear it.
-        attrbyte = memory.fetchByte(objTable + defaultsSize + ((obj - 1) * objEntrySize) + (whichbyte));
-        attrbyte = ((attrbyte & ~bitmask) & 0xff);
-        memory.putByte((objTable + defaultsSize + ((obj - 1) * objEntrySize) + (whichbyte)),attrbyte);
+        int addr = attrBase + (obj * objEntrySize) + (attr / 8);
+
+        if (memory.entriesModified)
+            readEntries();
+        if ((obj > 0) && (obj <= numObjects) && (attr < (objAttrSize * 8))) {
+            attributes[obj] &= ~(Long.MIN_VALUE >>> attr);
+            memory.putByteQuietly(addr,memory.fetchByte(addr) & ~(0x80 >>> (attr % 8)));
+        }
+        else
+            memory.putByte(addr,memory.fetchByte(addr) & ~(0x80 >>> (attr % 8)));
+    }
+
+    // Return the numbers of the objects, of the first numObjects, that
+    // have the specified attribute, in order.
+    int[] objectsWithAttribute(int attr)
+    {
+        long bit = Long.MIN_VALUE >>> attr;
+        int[] objs;
+        int n = 0;
+
+        if (memory.entriesModified)
+            readEntries();
+        if ((attr < 0) || (attr >= (objAttrSize * 8)))
+            return new int[0];
+        for (int obj = 1;obj <= numObjects;obj++)
+            if ((attributes[obj] & bit) != 0)
+                n++;
+        objs = new int[n];
+        n = 0;
+        for (int obj = 1;obj <= numObjects;obj++)
+            if ((attributes[obj] & bit) != 0)
+                objs[n++] = obj;
+        return objs;
     }
 
 }
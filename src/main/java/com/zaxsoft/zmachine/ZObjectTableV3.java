@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2008 Matthew E. Kimmel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.zaxsoft.zmachine;
+
+/**
+ * The V1-3 object table, whose object handles are bytes.
+ *
+ * @author Matt Kimmel
+ */
+class ZObjectTableV3 extends ZObjectTable {
+    private static final int ENTRY_SIZE = 9; // Size of an object entry
+
+    ZObjectTableV3()
+    {
+        super(62,4,1);
+    }
+
+    int getSibling(int obj)
+    {
+        return memory.fetchByte(siblingBase + (obj * ENTRY_SIZE));
+    }
+
+    void setSibling(int obj,int sib)
+    {
+        memory.putByteQuietly(siblingBase + (obj * ENTRY_SIZE),sib);
+    }
+
+    int getChild(int obj)
+    {
+        return memory.fetchByte(childBase + (obj * ENTRY_SIZE));
+    }
+
+    void setChild(int obj,int child)
+    {
+        memory.putByteQuietly(childBase + (obj * ENTRY_SIZE),child);
+    }
+
+    int getParent(int obj)
+    {
+        return memory.fetchByte(parentBase + (obj * ENTRY_SIZE));
+    }
+
+    void setParent(int obj,int parent)
+    {
+        memory.putByteQuietly(parentBase + (obj * ENTRY_SIZE),parent);
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2008 Matthew E. Kimmel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.zaxsoft.zmachine;
+
+/**
+ * The V4+ object table, whose object handles are words.
+ *
+ * @author Matt Kimmel
+ */
+class ZObjectTableV4 extends ZObjectTable {
+    private static final int ENTRY_SIZE = 14; // Size of an object entry
+
+    ZObjectTableV4()
+    {
+        super(126,6,2);
+    }
+
+    int getSibling(int obj)
+    {
+        return memory.fetchWord(siblingBase + (obj * ENTRY_SIZE));
+    }
+
+    void setSibling(int obj,int sib)
+    {
+        memory.putWordQuietly(siblingBase + (obj * ENTRY_SIZE),sib);
+    }
+
+    int getChild(int obj)
+    {
+        return memory.fetchWord(childBase + (obj * ENTRY_SIZE));
+    }
+
+    void setChild(int obj,int child)
+    {
+        memory.putWordQuietly(childBase + (obj * ENTRY_SIZE),child);
+    }
+
+    int getParent(int obj)
+    {
+        return memory.fetchWord(parentBase + (obj * ENTRY_SIZE));
+    }
+
+    void setParent(int obj,int parent)
+    {
+        memory.putWordQuietly(parentBase + (obj * ENTRY_SIZE),parent);
+    }
+}
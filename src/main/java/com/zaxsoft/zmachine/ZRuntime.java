@@ -0,0 +1,486 @@
+/**
+ * Copyright (c) 2008 Matthew E. Kimmel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.zaxsoft.zmachine;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ * Support for running Z-Machine routines as compiled JVM code.  ZCPU
+ * asks this object whether each routine it calls has been compiled;
+ * once a routine has been entered often enough it is handed to
+ * ZCompiler.  Compiled code calls back into this object for anything
+ * that touches the rest of the machine--memory, objects, output and
+ * the routine stack.
+ *
+ * @author Matt Kimmel
+ */
+final class ZRuntime {
+    // Other objects associated with this ZMachine
+    private ZCPU cpu;
+    private ZUserInterface zui;
+    private ZMemory memory;
+    private ZObjectTable objTable;
+    private ZIOCard ioCard;
+    private ZRandom rndgen;
+    private ZCompiler compiler;
+
+    // Private variables
+    private int threshold; // Number of entries before a routine is compiled
+    private int globalVars; // Location in memory of global variables
+    private int[] addrs; // Address of each routine entered; 0 marks an empty slot
+    private int[] entryCounts; // Entries per routine; -1 if it can't be compiled
+    private ZCompiledRoutine[] compiled; // Compiled form of each routine, if any
+    private int nroutines; // Number of slots in use
+    private int[] stack = new int[256]; // Routine stacks of all active compiled routines
+    private int sp; // Next free slot in stack
+    private int stackBase; // Bottom of the current compiled routine's stack
+
+    ZRuntime(ZCPU cpu,ZUserInterface zui,ZMemory memory,ZObjectTable objTable,
+             ZIOCard ioCard,ZRandom rndgen,int version,int globalVars,
+             int staticBase,int threshold)
+    {
+        this.cpu = cpu;
+        this.zui = zui;
+        this.memory = memory;
+        this.objTable = objTable;
+        this.ioCard = ioCard;
+        this.rndgen = rndgen;
+        this.globalVars = globalVars;
+        this.threshold = threshold;
+        compiler = new ZCompiler(cpu,memory,version,staticBase);
+        addrs = new int[256];
+        entryCounts = new int[256];
+        compiled = new ZCompiledRoutine[256];
+    }
+
+    // Routines are kept in addrs[], entryCounts[] and compiled[], an
+    // open-addressed hash table keyed by routine address, since only
+    // a few addresses in a story-file begin routines.
+
+    // Return the slot of the routine at addr, or -1 if it has none.
+    private int findSlot(int addr)
+    {
+        int mask = addrs.length - 1;
+
+        for (int i = (addr ^ (addr >>> 8)) & mask;addrs[i] != 0;i = (i + 1) & mask)
+            if (addrs[i] == addr)
+                return i;
+        return -1;
+    }
+
+    // Return the slot of the routine at addr, giving it one if it has
+    // none.  This may move the other routines to new slots.
+    private int slot(int addr)
+    {
+        int mask = addrs.length - 1;
+        int i;
+        int[] oldAddrs, oldCounts;
+        ZCompiledRoutine[] oldCompiled;
+
+        for (i = (addr ^ (addr >>> 8)) & mask;addrs[i] != 0;i = (i + 1) & mask)
+            if (addrs[i] == addr)
+                return i;
+
+        // Keep the table at most half full.
+        if ((nroutines + 1) * 2 > addrs.length) {
+            oldAddrs = addrs;
+            oldCounts = entryCounts;
+            oldCompiled = compiled;
+            addrs = new int[oldAddrs.length * 2];
+            entryCounts = new int[oldAddrs.length * 2];
+            compiled = new ZCompiledRoutine[oldAddrs.length * 2];
+            nroutines = 0;
+            for (int j = 0;j < oldAddrs.length;j++) {
+                if (oldAddrs[j] != 0) {
+                    i = slot(oldAddrs[j]);
+                    entryCounts[i] = oldCounts[j];
+                    compiled[i] = oldCompiled[j];
+                }
+            }
+            return slot(addr);
+        }
+        addrs[i] = addr;
+        nroutines++;
+        return i;
+    }
+
+    // Called by ZCPU each time it enters the routine at addr.  Returns
+    // the compiled form of the routine, compiling it first if it has
+    // just become hot, or null if the routine should be interpreted.
+    ZCompiledRoutine lookup(int addr)
+    {
+        Hashtable<Integer,ZCompiledRoutine> routines;
+        int i = slot(addr);
+
+        if (compiled[i] != null)
+            return compiled[i];
+        if ((entryCounts[i] < 0) || (++entryCounts[i] < threshold))
+            return null;
+
+        // Compile the routine, along with everything it calls.
+        routines = compiler.compile(addr);
+        if (routines == null) {
+            entryCounts[i] = -1; // Don't try again
+            return null;
+        }
+        for (Map.Entry<Integer,ZCompiledRoutine> e : routines.entrySet())
+            compiled[slot(e.getKey().intValue())] = e.getValue();
+        return compiled[slot(addr)];
+    }
+
+    // Forget all compiled code.  ZCPU calls this whenever memory
+    // holding cached instructions is written.
+    void flush()
+    {
+        Arrays.fill(addrs,0);
+        Arrays.fill(entryCounts,0);
+        Arrays.fill(compiled,null);
+        nroutines = 0;
+    }
+
+    // Run a compiled routine and return its return value.  The routine
+    // gets a fresh routine stack above that of its caller.
+    int run(ZCompiledRoutine r,int[] args)
+    {
+        int savedSp = sp;
+        int savedBase = stackBase;
+        int value;
+
+        stackBase = sp;
+        try {
+            value = r.run(this,args);
+        }
+        catch (StackOverflowError e) {
+            zui.fatal("Compiled routines nested too deeply");
+            value = 0;
+        }
+        sp = savedSp;
+        stackBase = savedBase;
+        return value;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // Services for compiled code.  Each of these mirrors the ZCPU
+    // method that implements the same instruction.
+    ///////////////////////////////////////////////////////////////////
+
+    // Call the routine at addr.  Everything a compiled routine calls
+    // was compiled along with it, so this only falls back to the
+    // interpreter if the compiled code has since been flushed.
+    int call(int addr,int[] args)
+    {
+        int i;
+
+        if (memory.codeModified)
+            cpu.flushCodeCaches();
+        i = findSlot(addr);
+        if ((i >= 0) && (compiled[i] != null))
+            return run(compiled[i],args);
+        return cpu.callInterpreted(addr,args);
+    }
+
+    // Initial value of local variable i: the argument, if there is one.
+    int arg(int[] args,int i,int dflt)
+    {
+        if (i < args.length)
+            return args[i];
+        return dflt;
+    }
+
+    // CHECK_ARG_COUNT
+    boolean checkArgCount(int[] args,int n)
+    {
+        return (args.length >= n);
+    }
+
+    // Pop the routine stack (reading variable 0).
+    int pop()
+    {
+        if (sp <= stackBase) {
+            zui.fatal("Routine stack underflow");
+            return 0;
+        }
+        return stack[--sp];
+    }
+
+    // Push onto the routine stack (writing variable 0).
+    void push(int value)
+    {
+        if (sp == stack.length)
+            stack = Arrays.copyOf(stack,stack.length * 2);
+        stack[sp++] = (value & 0xffff);
+    }
+
+    // Read global variable v (16-255).
+    int getGlobal(int v)
+    {
+        return memory.fetchWord(globalVars + ((v - 16) * 2));
+    }
+
+    // Write global variable v (16-255).
+    void putGlobal(int value,int v)
+    {
+        memory.putWord((globalVars + ((v - 16) * 2)),value & 0xffff);
+    }
+
+    // Arithmetic
+    int add(int a,int b)
+    {
+        return (cpu.signedWord(a) + cpu.signedWord(b)) & 0xffff;
+    }
+
+    int sub(int a,int b)
+    {
+        return (cpu.signedWord(a) - cpu.signedWord(b)) & 0xffff;
+    }
+
+    int mul(int a,int b)
+    {
+        return (cpu.signedWord(a) * cpu.signedWord(b)) & 0xffff;
+    }
+
+    int div(int a,int b)
+    {
+        if (b == 0) {
+            zui.fatal("Divide by zero");
+            return 0;
+        }
+        return (cpu.signedWord(a) / cpu.signedWord(b)) & 0xffff;
+    }
+
+    int mod(int a,int b)
+    {
+        if (b == 0)
+            return a;
+        return (cpu.signedWord(a) % cpu.signedWord(b)) & 0xffff;
+    }
+
+    int or(int a,int b)
+    {
+        return (a | b);
+    }
+
+    int and(int a,int b)
+    {
+        return (a & b);
+    }
+
+    int not(int a)
+    {
+        return ((~a) & 0xffff);
+    }
+
+    // NOT of a byte constant
+    int notByte(int a)
+    {
+        return ((~a) & 0xff);
+    }
+
+    int inc(int a)
+    {
+        return ((cpu.signedWord(a) + 1) % 0x10000) & 0xffff;
+    }
+
+    int dec(int a)
+    {
+        return ((cpu.signedWord(a) - 1) % 0x10000) & 0xffff;
+    }
+
+    int random(int a)
+    {
+        if (cpu.signedWord(a) > 0)
+            return rndgen.getRandom(cpu.signedWord(a)) & 0xffff;
+        rndgen.seed(cpu.signedWord(a));
+        return 0;
+    }
+
+    // Comparisons
+    boolean jz(int a)
+    {
+        return (a == 0);
+    }
+
+    boolean je(int a,int b)
+    {
+        return (a == b);
+    }
+
+    boolean je(int a,int b,int c)
+    {
+        return ((a == b) || (a == c));
+    }
+
+    boolean je(int a,int b,int c,int d)
+    {
+        return ((a == b) || (a == c) || (a == d));
+    }
+
+    boolean jl(int a,int b)
+    {
+        return (cpu.signedWord(a) < cpu.signedWord(b));
+    }
+
+    boolean jg(int a,int b)
+    {
+        return (cpu.signedWord(a) > cpu.signedWord(b));
+    }
+
+    boolean test(int a,int b)
+    {
+        return ((a & b) == b);
+    }
+
+    // Memory
+    int loadw(int baddr,int n)
+    {
+        return memory.fetchWord(baddr + (2 * n));
+    }
+
+    int loadb(int baddr,int n)
+    {
+        return memory.fetchByte(baddr + n);
+    }
+
+    void storew(int baddr,int n,int a)
+    {
+        memory.putWord((baddr + (2 * n)),a & 0xffff);
+    }
+
+    void storeb(int baddr,int n,int a)
+    {
+        memory.putByte((baddr + n),a & 0xff);
+    }
+
+    // Objects
+    boolean jin(int obj1,int obj2)
+    {
+        return (objTable.getParent(obj1) == obj2);
+    }
+
+    int getSibling(int obj)
+    {
+        return objTable.getSibling(obj);
+    }
+
+    int getChild(int obj)
+    {
+        return objTable.getChild(obj);
+    }
+
+    int getParent(int obj)
+    {
+        return objTable.getParent(obj);
+    }
+
+    void removeObj(int obj)
+    {
+        int parent;
+
+        parent = objTable.getParent(obj);
+        if (obj == 0)
+            return;
+        objTable.removeObject(parent,obj);
+    }
+
+    void insertObj(int obj1,int obj2)
+    {
+        objTable.insertObject(obj1,obj2);
+    }
+
+    boolean testAttr(int obj,int attr)
+    {
+        return objTable.hasAttribute(obj,attr);
+    }
+
+    void setAttr(int obj,int attr)
+    {
+        objTable.setAttribute(obj,attr);
+    }
+
+    void clearAttr(int obj,int attr)
+    {
+        objTable.clearAttribute(obj,attr);
+    }
+
+    int getProp(int obj,int prop)
+    {
+        return objTable.getProperty(obj,prop);
+    }
+
+    int getPropAddr(int obj,int prop)
+    {
+        return objTable.getPropertyAddress(obj,prop);
+    }
+
+    int getNextProp(int obj,int prop)
+    {
+        return objTable.getNextProperty(obj,prop);
+    }
+
+    int getPropLen(int baddr)
+    {
+        return objTable.getPropertyLength(baddr);
+    }
+
+    void putProp(int obj,int prop,int a)
+    {
+        objTable.putProperty(obj,prop,a);
+    }
+
+    // Output
+    void printString(int addr)
+    {
+        ioCard.printString(cpu.decodeZString(addr));
+    }
+
+    void printAddr(int addr)
+    {
+        ioCard.printString(cpu.decodeZString(addr));
+    }
+
+    void printPaddr(int paddr)
+    {
+        ioCard.printString(cpu.decodeZString(cpu.unpackAddr(paddr,false)));
+    }
+
+    void printObj(int obj)
+    {
+        ioCard.printString(cpu.decodeZString(objTable.getObjectName(obj)));
+    }
+
+    void printChar(int c)
+    {
+        ioCard.printChar((char)c);
+    }
+
+    void printNum(int a)
+    {
+        ioCard.printNumber(cpu.signedWord(a));
+    }
+
+    void newLine()
+    {
+        cpu.printNewLine();
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2008 Matthew E. Kimmel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.zaxsoft.zmachine;
+
+import java.util.Arrays;
+
+/**
+ * A buffer in which ZCPU packs the state of its call frames for
+ * SAVE_UNDO, and from which it unpacks them again.  Words are packed
+ * into two bytes, high byte first.  Other numbers, such as counts and
+ * program counters, are packed seven bits to a byte, low bits first,
+ * with the top bit set on every byte but the last, so small ones take
+ * a single byte.
+ *
+ * @author Matt Kimmel
+ */
+class ZStateBuffer {
+    // Variables
+    private byte[] buf; // The packed bytes
+    private int pos; // Where the next byte goes or comes from
+    private int len; // Number of bytes in buf
+
+    // Create an empty buffer to pack state into.
+    ZStateBuffer()
+    {
+        buf = new byte[256];
+    }
+
+    // Create a buffer to unpack the given state from.
+    ZStateBuffer(byte[] state)
+    {
+        buf = state;
+        len = state.length;
+    }
+
+    // Empty the buffer, so it can be used again.
+    void clear()
+    {
+        pos = len = 0;
+    }
+
+    // Return a copy of the bytes packed into the buffer.
+    byte[] toByteArray()
+    {
+        return Arrays.copyOf(buf,len);
+    }
+
+    // Pack a word.
+    void putWord(int w)
+    {
+        if (len + 2 > buf.length)
+            buf = Arrays.copyOf(buf,buf.length * 2);
+        buf[len++] = (byte)(w >> 8);
+        buf[len++] = (byte)w;
+    }
+
+    // Pack a number, which must not be negative.
+    void putNumber(int n)
+    {
+        if (len + 5 > buf.length)
+            buf = Arrays.copyOf(buf,buf.length * 2);
+        while (n >= 0x80) {
+            buf[len++] = (byte)(n | 0x80);
+            n >>>= 7;
+        }
+        buf[len++] = (byte)n;
+    }
+
+    // Unpack a word.
+    int getWord()
+    {
+        int w = ((buf[pos] & 0xff) << 8) | (buf[pos + 1] & 0xff);
+
+        pos += 2;
+        return w;
+    }
+
+    // Unpack a number.
+    int getNumber()
+    {
+        int n = 0;
+        int shift = 0;
+        int b;
+
+        do {
+            b = buf[pos++];
+            n |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return n;
+    }
+}
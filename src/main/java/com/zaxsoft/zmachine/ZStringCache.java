@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2008 Matthew E. Kimmel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.zaxsoft.zmachine;
+
+import java.util.Arrays;
+
+/**
+ * A cache of decoded Z-strings, keyed by address.  Most text is in
+ * static or high memory and can't change, but a string in dynamic
+ * memory (an object's short name, say), or one that uses an
+ * abbreviation kept there, might.  For those, each entry records the
+ * words of dynamic memory that went into it, and is only used while
+ * they are unchanged.
+ *
+ * Entries are kept in an open-addressed table, so that looking one up
+ * allocates nothing.  A string may go in any of PROBES slots starting
+ * at the one its address hashes to; when they are all full, the least
+ * recently used of them is dropped.
+ *
+ * @author Matt Kimmel
+ */
+class ZStringCache {
+    private static final int PROBES = 4; // Slots a string may go in
+
+    // Variables
+    private Entry[] entries; // Entry in each slot, or null
+    private int shift; // Shift that takes a hashed address to a slot number
+    private long clock; // Counts uses of entries, to find the least recent
+    int hits; // Number of lookups that found a usable entry
+    int misses; // Number of lookups that didn't
+
+    // A cached string
+    private static class Entry {
+        int addr; // Address of the string
+        String text; // The decoded string
+        int[] depends; // Pairs of dynamic-memory address and the word there
+        long lastUsed; // Value of clock when the entry was last used
+    }
+
+    // Create a cache holding at most maxEntries strings, rounded up to
+    // a power of two.
+    ZStringCache(int maxEntries)
+    {
+        int size = Math.max(Integer.highestOneBit(Math.max(maxEntries - 1,1)) << 1,PROBES);
+
+        entries = new Entry[size];
+        shift = 32 - Integer.numberOfTrailingZeros(size);
+    }
+
+    // Return the first slot for the string at addr.
+    private int slot(int addr)
+    {
+        return ((addr * 0x9e3779b9) >>> shift);
+    }
+
+    // Return the cached string at addr, or null if there is none or
+    // what it was decoded from has changed.
+    String get(ZMemory memory,int addr)
+    {
+        int mask = entries.length - 1;
+        Entry e;
+
+        for (int n = 0,i = slot(addr);n < PROBES;n++,i = (i + 1) & mask) {
+            e = entries[i];
+            if ((e == null) || (e.addr != addr))
+                continue;
+            for (int j=0;j<e.depends.length;j+=2) {
+                if (memory.fetchWord(e.depends[j]) != e.depends[j + 1]) {
+                    entries[i] = null;
+                    misses++;
+                    return null;
+                }
+            }
+            e.lastUsed = ++clock;
+            hits++;
+            return e.text;
+        }
+        misses++;
+        return null;
+    }
+
+    // Throw away all of the entries.
+    void clear()
+    {
+        Arrays.fill(entries,null);
+    }
+
+    // Cache the string text, decoded from addr.  depends holds n
+    // pairs of address and word: the words of dynamic memory it was
+    // decoded from.
+    void put(int addr,String text,int[] depends,int n)
+    {
+        int mask = entries.length - 1;
+        int victim = -1;
+        Entry e = new Entry();
+
+        e.addr = addr;
+        e.text = text;
+        e.depends = new int[n * 2];
+        System.arraycopy(depends,0,e.depends,0,n * 2);
+        e.lastUsed = ++clock;
+
+        // Use the slot already holding addr, or else an empty one, or
+        // else the least recently used.
+        for (int k = 0,i = slot(addr);k < PROBES;k++,i = (i + 1) & mask) {
+            if ((entries[i] == null) || (entries[i].addr == addr)) {
+                victim = i;
+                if (entries[i] != null)
+                    break;
+            }
+            else if ((victim == -1) || ((entries[victim] != null) && (entries[i].lastUsed < entries[victim].lastUsed)))
+                victim = i;
+        }
+        entries[victim] = e;
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright (c) 2008 Matthew E. Kimmel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.zaxsoft.zmachine;
+
+import java.util.Arrays;
+
+/**
+ * A ring of undo snapshots, newest first, for SAVE_UNDO and
+ * RESTORE_UNDO.  Each snapshot is the CPU state, as packed by
+ * ZCPU.packState(), and a page snapshot of dynamic memory (see
+ * ZMemory.snapshot()).
+ *
+ * Only the newest snapshot keeps its memory pages; it shares nearly all
+ * of them with the running game anyway.  When a newer snapshot is
+ * added, each page of the old one that differs is replaced by the
+ * run-length-encoded XOR of the two pages, and pages that are the same
+ * are dropped altogether.  Taking the newest snapshot off the ring
+ * rebuilds the pages of the one below it from those deltas.
+ *
+ * The ring holds at most depth snapshots, and drops the oldest ones
+ * when the total size goes over the byte budget.
+ *
+ * @author Matt Kimmel
+ */
+class ZUndoRing {
+    // Variables
+    private int depth; // Maximum number of snapshots
+    private int budget; // Maximum total size of the snapshots, in bytes
+    private byte[][] states; // CPU state of each snapshot
+    private byte[][][] deltas; // Memory deltas of each snapshot but the newest
+    private int[] sizes; // Size of each snapshot, in bytes
+    private byte[][] newestPages; // Memory pages of the newest snapshot
+    private int newest; // Index of the newest snapshot
+    private int count; // Number of snapshots in the ring
+    private int totalSize; // Total size of the snapshots
+
+    // Create an empty ring holding at most depth snapshots and
+    // budget bytes.
+    ZUndoRing(int depth,int budget)
+    {
+        this.depth = Math.max(depth,1);
+        this.budget = budget;
+        states = new byte[this.depth][];
+        deltas = new byte[this.depth][][];
+        sizes = new int[this.depth];
+        newest = 0;
+        count = 0;
+        totalSize = 0;
+    }
+
+    // Add a snapshot to the ring.
+    void push(byte[] state,byte[][] pages)
+    {
+        // Make room for the new snapshot, then turn the current newest
+        // one into deltas against it.
+        if (count == depth)
+            dropOldest();
+        if (count > 0) {
+            deltas[newest] = new byte[pages.length][];
+            for (int i = 0;i < pages.length;i++) {
+                if (newestPages[i] != pages[i]) {
+                    deltas[newest][i] = encode(newestPages[i],pages[i]);
+                    sizes[newest] += deltas[newest][i].length;
+                    totalSize += deltas[newest][i].length;
+                }
+            }
+        }
+
+        // Add the new one
+        newest = (newest + 1) % depth;
+        if (count == 0)
+            newest = 0;
+        count++;
+        states[newest] = state;
+        deltas[newest] = null;
+        newestPages = pages;
+        sizes[newest] = state.length;
+        totalSize += state.length;
+
+        // Keep within the budget, but always keep the new snapshot.
+        while ((totalSize > budget) && (count > 1))
+            dropOldest();
+    }
+
+    // Return the CPU state of the newest snapshot, or null if the ring
+    // is empty.
+    byte[] newestState()
+    {
+        if (count == 0)
+            return null;
+        return states[newest];
+    }
+
+    // Return the memory pages of the newest snapshot.
+    byte[][] newestPages()
+    {
+        return newestPages;
+    }
+
+    // Take the newest snapshot off the ring; the one below it, if any,
+    // becomes the newest.
+    void pop()
+    {
+        byte[][] pages;
+        byte[][] d;
+
+        if (count == 0)
+            return;
+        totalSize -= sizes[newest];
+        states[newest] = null;
+        count--;
+        if (count == 0) {
+            newestPages = null;
+            return;
+        }
+
+        // Rebuild the pages of the one below.
+        newest = (newest + depth - 1) % depth;
+        d = deltas[newest];
+        pages = newestPages.clone();
+        for (int i = 0;i < pages.length;i++) {
+            if (d[i] != null)
+                pages[i] = decode(newestPages[i],d[i]);
+        }
+        newestPages = pages;
+        deltas[newest] = null;
+        totalSize -= (sizes[newest] - states[newest].length);
+        sizes[newest] = states[newest].length;
+    }
+
+    // Drop the oldest snapshot.
+    private void dropOldest()
+    {
+        int oldest = (newest + depth - count + 1) % depth;
+
+        totalSize -= sizes[oldest];
+        states[oldest] = null;
+        deltas[oldest] = null;
+        sizes[oldest] = 0;
+        count--;
+    }
+
+    // Return the number of snapshots in the ring.
+    int size()
+    {
+        return count;
+    }
+
+    // Return the size in bytes of each snapshot, newest first.  The
+    // newest snapshot's memory shares its pages with the game, so only
+    // its CPU state is counted.
+    int[] snapshotSizes()
+    {
+        int[] s = new int[count];
+
+        for (int i = 0;i < count;i++)
+            s[i] = sizes[(newest + depth - i) % depth];
+        return s;
+    }
+
+    // Return the total size in bytes of the snapshots.
+    int totalSize()
+    {
+        return totalSize;
+    }
+
+    // Encode page a as a delta against page b, which is the same
+    // length.  The XOR of the two pages is run-length encoded as pairs
+    // of counts, of zero bytes to skip and of the literal bytes that
+    // follow them, each at most 255.
+    private static byte[] encode(byte[] a,byte[] b)
+    {
+        byte[] out = new byte[a.length * 2 + 2];
+        int n = 0;
+        int i = 0;
+        int zeros, lits;
+
+        while (i < a.length) {
+            zeros = 0;
+            while ((i + zeros < a.length) && (zeros < 255) && (a[i + zeros] == b[i + zeros]))
+                zeros++;
+            i += zeros;
+            lits = 0;
+            while ((i + lits < a.length) && (lits < 255) && (a[i + lits] != b[i + lits]))
+                lits++;
+            if (n + 2 + lits > out.length)
+                out = Arrays.copyOf(out,out.length * 2);
+            out[n++] = (byte)zeros;
+            out[n++] = (byte)lits;
+            for (int j = 0;j < lits;j++)
+                out[n++] = (byte)(a[i + j] ^ b[i + j]);
+            i += lits;
+        }
+        return Arrays.copyOf(out,n);
+    }
+
+    // Rebuild the page encoded as delta against page b.
+    private static byte[] decode(byte[] b,byte[] delta)
+    {
+        byte[] a = b.clone();
+        int i = 0;
+        int n = 0;
+        int lits;
+
+        while (n < delta.length) {
+            i += (delta[n++] & 0xff);
+            lits = (delta[n++] & 0xff);
+            for (int j = 0;j < lits;j++) {
+                a[i] ^= delta[n++];
+                i++;
+            }
+        }
+        return a;
+    }
+}
@@ -132,8 +132,9 @@ public interface ZUserInterface {
     // nonzero, it times out after time/10 seconds.
     int readChar(int time);
 
-    // Print a string
-    void showString(String s);
+    // Print some text.  The Z-Machine reuses the CharSequence once
+    // this returns, so copy it if it needs to be kept.
+    void showString(CharSequence s);
 
     // This method scrolls the current window by the specified
     // number of lines.
@@ -151,6 +152,15 @@ public interface ZUserInterface {
 	// return null if there was an error or the user canceled.
 	String getFilename(String title, String suggested, boolean saveFlag);
 
+	// This method is called when a file that the Z-Machine was saving in
+	// the background (see ZCPU.setSaveExecutor()) could not be written.
+	// The game has already been told that the save succeeded.  It is
+	// called on the thread that was doing the writing.  By default,
+	// nothing is done.
+	default void saveFailed(String filename, String message)
+	{
+	}
+
     // This function is called when the Z-Machine halts.  It
     // should not return.
     void quit();
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2008 Matthew E. Kimmel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.zaxsoft.zmachine;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+
+/**
+ * Helpers for the tests: tiny story-files built in memory, and a user
+ * interface that collects the story's output.  There's no test
+ * framework here, so each test is a program that throws if a check
+ * fails.
+ *
+ * @author Matt Kimmel
+ */
+class TestStory {
+    // Thrown by the user interface when the story quits, to get out of
+    // ZCPU.run().
+    static class Quit extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+    // Return a blank story image of the given version and size, all of
+    // it dynamic memory.
+    static byte[] image(int version,int size)
+    {
+        byte[] story = new byte[size];
+
+        story[0x00] = (byte)version;
+        putWord(story,0x0e,size);
+        return story;
+    }
+
+    // Store a word in a story image.
+    static void putWord(byte[] story,int addr,int w)
+    {
+        story[addr] = (byte)(w >> 8);
+        story[addr + 1] = (byte)w;
+    }
+
+    // Write a story image to a temporary file, and return its name.
+    static String write(byte[] story) throws IOException
+    {
+        File f = File.createTempFile("zaxtest",".z");
+
+        f.deleteOnExit();
+        Files.write(f.toPath(),story);
+        return f.getPath();
+    }
+
+    // Return a user interface that adds everything the story prints to
+    // output, and throws Quit when the story quits or waits for input.
+    // It has no status line, windows or styles.
+    static ZUserInterface userInterface(final StringBuilder output)
+    {
+        return (ZUserInterface)Proxy.newProxyInstance(ZUserInterface.class.getClassLoader(),
+            new Class<?>[] { ZUserInterface.class },(proxy,method,args) -> {
+                String name = method.getName();
+                Class<?> type = method.getReturnType();
+
+                if (name.equals("fatal"))
+                    throw new IllegalStateException((String)args[0]);
+                if (name.equals("quit") || name.equals("readLine") || name.equals("readChar"))
+                    throw new Quit();
+                if (name.equals("showString"))
+                    output.append((CharSequence)args[0]);
+                if (type == Boolean.TYPE)
+                    return Boolean.FALSE;
+                if (type == Integer.TYPE)
+                    return Integer.valueOf(0);
+                if (type == Dimension.class)
+                    return new Dimension(80,25);
+                if (type == Point.class)
+                    return new Point(1,1);
+                return null;
+            });
+    }
+
+    // Throw if a check fails.
+    static void check(boolean ok,String what)
+    {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
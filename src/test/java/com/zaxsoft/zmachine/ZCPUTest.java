@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2008 Matthew E. Kimmel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.zaxsoft.zmachine;
+
+/**
+ * Tests of ZCPU's decoded-instruction cache: an instruction whose
+ * bytes the story changes must be decoded again.
+ *
+ * @author Matt Kimmel
+ */
+class ZCPUTest {
+    // Where things are in the test story
+    private static final int OBJECTS = 0x40; // Object table, with one object
+    private static final int CODE = 0xd0; // The program
+    private static final int GLOBALS = 0x100; // Global variables
+    private static final int STRING = 0x2e0; // An empty string
+    private static final int ABBREVIATIONS = 0x2e2; // 96 abbreviations of it
+    private static final int SIZE = 0x3a2;
+
+    public static void main(String[] args) throws Exception
+    {
+        testSelfModifyingCode();
+        System.out.println("ZCPUTest: OK");
+    }
+
+    // Run a V5 story that prints a character, changes the operand of
+    // the instruction that printed it, and runs that instruction again.
+    private static void testSelfModifyingCode() throws Exception
+    {
+        StringBuilder output = new StringBuilder();
+        ZCPU cpu = new ZCPU(TestStory.userInterface(output));
+        ZInstruction ins;
+
+        cpu.initialize(TestStory.write(story()));
+        ins = cpu.fetchInstruction(CODE);
+        TestStory.check(ins == cpu.fetchInstruction(CODE),"instruction cached");
+        TestStory.check(ins.operands[0] == 'a',"operand decoded");
+        try {
+            cpu.run();
+        }
+        catch (TestStory.Quit q) {
+        }
+        TestStory.check(output.toString().equals("ab"),"changed instruction decoded again, printed " + output);
+        ins = cpu.fetchInstruction(CODE);
+        TestStory.check(ins.operands[0] == 'b',"cached instruction replaced");
+    }
+
+    // Return the test story.
+    private static byte[] story()
+    {
+        byte[] story = TestStory.image(5,SIZE);
+        byte[] code = {
+            (byte)0xe5,0x7f,'a', // print_char 'a'
+            (byte)0xe2,0x17,(byte)((CODE + 2) >> 8),(byte)(CODE + 2),0,'b', // storeb CODE+2 0 'b'
+            0x05,0x10,0x01,(byte)0xc5, // inc_chk g0 1 ?quit
+            (byte)0x8c,(byte)0xff,(byte)0xf2, // jump CODE
+            (byte)0xba // quit
+        };
+
+        TestStory.putWord(story,0x06,CODE);
+        TestStory.putWord(story,0x0a,OBJECTS);
+        TestStory.putWord(story,0x0c,GLOBALS);
+        TestStory.putWord(story,0x18,ABBREVIATIONS);
+
+        // One object with an empty property table, just after it
+        TestStory.putWord(story,OBJECTS + 126 + 12,OBJECTS + 126 + 14);
+
+        System.arraycopy(code,0,story,CODE,code.length);
+        TestStory.putWord(story,STRING,0x94a5);
+        for (int i = 0;i < 96;i++)
+            TestStory.putWord(story,ABBREVIATIONS + (i * 2),STRING / 2);
+        return story;
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2008 Matthew E. Kimmel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.zaxsoft.zmachine;
+
+import java.util.Arrays;
+
+/**
+ * Tests of ZObjectTable's attribute mirror, which must always agree
+ * with the attribute bytes in memory, however they were changed.
+ *
+ * @author Matt Kimmel
+ */
+class ZObjectTableTest {
+    // Where things are in the test story
+    private static final int OBJECTS = 0x40; // Object table, with three objects
+    private static final int ENTRIES = OBJECTS + 62; // Their entries
+    private static final int PROPERTIES = ENTRIES + 27; // Their empty property tables
+    private static final int SIZE = 0xa0;
+
+    public static void main(String[] args) throws Exception
+    {
+        testMirror();
+        System.out.println("ZObjectTableTest: OK");
+    }
+
+    private static void testMirror() throws Exception
+    {
+        ZUserInterface ui = TestStory.userInterface(new StringBuilder());
+        ZMemory memory = new ZMemory();
+        ZObjectTable objTable = ZObjectTable.create(3);
+        byte[][] snapshot;
+
+        memory.initialize(ui,TestStory.write(story()));
+        objTable.initialize(ui,memory,3);
+
+        // As loaded
+        checkMirror(memory,objTable,"as loaded");
+        TestStory.check(objTable.hasAttribute(1,2),"attribute 2 of 1 loaded");
+        TestStory.check(objTable.hasAttribute(3,31),"attribute 31 of 3 loaded");
+        TestStory.check(Arrays.equals(objTable.objectsWithAttribute(2),new int[] { 1 }),"objects with 2 loaded");
+
+        // SET_ATTR and CLEAR_ATTR
+        objTable.setAttribute(2,2);
+        objTable.clearAttribute(1,2);
+        checkMirror(memory,objTable,"after set and clear");
+        TestStory.check(memory.fetchByte(entry(2)) == 0x20,"attribute 2 of 2 set in memory");
+        TestStory.check(memory.fetchByte(entry(1)) == 0,"attribute 2 of 1 cleared in memory");
+        TestStory.check(Arrays.equals(objTable.objectsWithAttribute(2),new int[] { 2 }),"objects with 2 after set");
+
+        // STOREB straight into an attribute byte
+        memory.putByte(entry(3),0x80);
+        checkMirror(memory,objTable,"after STOREB");
+        TestStory.check(objTable.hasAttribute(3,0),"attribute 0 of 3 stored");
+        TestStory.check(Arrays.equals(objTable.objectsWithAttribute(0),new int[] { 3 }),"objects with 0 after STOREB");
+
+        // RESTORE_UNDO of a snapshot taken before a change
+        snapshot = memory.snapshot();
+        objTable.setAttribute(3,5);
+        TestStory.check(objTable.hasAttribute(3,5),"attribute 5 of 3 set");
+        memory.restore(snapshot);
+        checkMirror(memory,objTable,"after restore");
+        TestStory.check(!objTable.hasAttribute(3,5),"attribute 5 of 3 undone");
+        TestStory.check(objTable.objectsWithAttribute(5).length == 0,"objects with 5 undone");
+    }
+
+    // Check that every attribute of every object is what memory says.
+    private static void checkMirror(ZMemory memory,ZObjectTable objTable,String when)
+    {
+        boolean inMemory;
+
+        for (int obj = 1;obj <= 3;obj++)
+            for (int attr = 0;attr < 32;attr++) {
+                inMemory = (memory.fetchByte(entry(obj) + (attr / 8)) & (0x80 >>> (attr % 8))) != 0;
+                TestStory.check(objTable.hasAttribute(obj,attr) == inMemory,"attribute " + attr + " of " + obj + " " + when);
+            }
+    }
+
+    // Return the address of an object's entry.
+    private static int entry(int obj)
+    {
+        return ENTRIES + ((obj - 1) * 9);
+    }
+
+    // Return the test story: a V3 object table of three objects, with
+    // attribute 2 of object 1 and attribute 31 of object 3 set.
+    private static byte[] story()
+    {
+        byte[] story = TestStory.image(3,SIZE);
+
+        TestStory.putWord(story,0x0a,OBJECTS);
+        for (int obj = 1;obj <= 3;obj++)
+            TestStory.putWord(story,entry(obj) + 7,PROPERTIES + ((obj - 1) * 2));
+        story[entry(1)] = 0x20;
+        story[entry(3) + 3] = 0x01;
+        return story;
+    }
+}